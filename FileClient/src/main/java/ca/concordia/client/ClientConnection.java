@@ -0,0 +1,109 @@
+package ca.concordia.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// one socket to the server with any number of requests pipelined on it.
+// the server answers lines in the order it got them, so a FIFO of futures
+// is enough to match every response to its request. "EVENT" lines from a
+// WATCH are not responses and go to the event listener instead
+class ClientConnection {
+    private final Socket socket;
+    private final PrintWriter writer;
+    private final BufferedReader reader;
+    private final Deque<CompletableFuture<String>> pending = new ArrayDeque<>();
+    private volatile boolean open = true;
+    private volatile Consumer<String> eventListener;
+
+    ClientConnection(String host, int port, int connectTimeoutMs) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+        socket.setTcpNoDelay(true);
+        writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+        Thread t = new Thread(this::readLoop, "file-client-" + socket.getLocalPort());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // queue the future before writing so the reader can never see a response first
+    synchronized CompletableFuture<String> send(String line) {
+        CompletableFuture<String> f = new CompletableFuture<>();
+        if (!open) {
+            f.completeExceptionally(new IOException("connection closed"));
+            return f;
+        }
+        pending.addLast(f);
+        writer.print(line);
+        writer.print('\n');
+        writer.flush();
+        if (writer.checkError())
+            fail(new IOException("write to server failed"));
+        return f;
+    }
+
+    synchronized int pendingCount() { return pending.size(); }
+
+    // gets what follows "EVENT ", and null once the connection is lost
+    void setEventListener(Consumer<String> listener) { this.eventListener = listener; }
+
+    boolean isOpen() { return open; }
+
+    void close() {
+        fail(new IOException("connection closed"));
+    }
+
+    private void readLoop() {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("EVENT ")) {
+                    Consumer<String> l = eventListener;
+                    if (l != null) l.accept(line.substring("EVENT ".length()));
+                    continue;
+                }
+                CompletableFuture<String> f;
+                synchronized (this) {
+                    f = pending.pollFirst();
+                }
+                // nothing waiting for it, drop it
+                if (f == null) continue;
+                complete(f, line);
+            }
+            fail(new IOException("server closed the connection"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private static void complete(CompletableFuture<String> f, String line) {
+        if (line.startsWith("SUCCESS: "))
+            f.complete(line.substring("SUCCESS: ".length()));
+        else if (line.startsWith("SUCCESS"))
+            f.complete(line.substring("SUCCESS".length()));
+        else
+            f.completeExceptionally(new FileClientException(line));
+    }
+
+    // mark broken and fail everything still in flight, the pool reconnects later
+    private synchronized void fail(IOException cause) {
+        Consumer<String> l = eventListener;
+        if (open && l != null) l.accept(null);
+        open = false;
+        try { socket.close(); } catch (IOException ignored) {}
+        CompletableFuture<String> f;
+        while ((f = pending.pollFirst()) != null)
+            f.completeExceptionally(cause);
+    }
+}
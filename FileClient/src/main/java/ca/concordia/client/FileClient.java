@@ -0,0 +1,348 @@
+package ca.concordia.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+// reusable client for the file server.
+// keeps a small pool of connections and pipelines requests over them, so
+// callers can have many requests outstanding without one thread each.
+// broken connections are replaced on the next request
+public class FileClient implements AutoCloseable {
+
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    // bytes per READ when streaming a file
+    private static final int STREAM_CHUNK = 512;
+    // an overloaded server answers BUSY without running the request, so any request can be retried
+    private static final int BUSY_RETRIES = 4;
+    private static final long BUSY_BACKOFF_MS = 20;
+
+    private final String host;
+    private final int port;
+    private final AtomicReferenceArray<ClientConnection> pool;
+    private final Object[] slotLocks;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private volatile boolean closed;
+
+    // watches get a connection of their own, events arrive on the one that subscribed
+    private final Object watchLock = new Object();
+    private ClientConnection watchConn;
+    private final Map<String, BiConsumer<String, String>> watches = new ConcurrentHashMap<>();
+
+    public FileClient(String host, int port) {
+        this(host, port, 4);
+    }
+
+    public FileClient(String host, int port, int poolSize) {
+        if (poolSize < 1)
+            throw new IllegalArgumentException("pool size must be at least 1");
+        this.host = host;
+        this.port = port;
+        this.pool = new AtomicReferenceArray<>(poolSize);
+        this.slotLocks = new Object[poolSize];
+        for (int i = 0; i < poolSize; i++) slotLocks[i] = new Object();
+    }
+
+    public CompletableFuture<Void> create(String name) {
+        return checkName(name).thenCompose(v -> submit("CREATE " + name, false)).thenApply(r -> null);
+    }
+
+    public CompletableFuture<Void> write(String name, byte[] data) {
+        String text = new String(data, StandardCharsets.UTF_8);
+        // the protocol is one request per line
+        if (text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0)
+            return CompletableFuture.failedFuture(new IllegalArgumentException("data cannot contain line breaks"));
+        return checkName(name).thenCompose(v -> submit("WRITE " + name + " " + text, false)).thenApply(r -> null);
+    }
+
+    public CompletableFuture<byte[]> read(String name) {
+        return checkName(name).thenCompose(v -> submit("READ " + name, true))
+                .thenApply(r -> r.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // length bytes from offset, shorter at the end of the file. ranges come back in
+    // base64, a chunk boundary can fall inside a character
+    public CompletableFuture<byte[]> read(String name, int offset, int length) {
+        if (offset < 0 || length < 0)
+            return CompletableFuture.failedFuture(new IllegalArgumentException("invalid range"));
+        return checkName(name).thenCompose(v -> submit("READ " + name + " " + offset + " " + length, true))
+                .thenApply(r -> Base64.getDecoder().decode(r.trim()));
+    }
+
+    public CompletableFuture<Void> delete(String name) {
+        return checkName(name).thenCompose(v -> submit("DELETE " + name, false)).thenApply(r -> null);
+    }
+
+    public CompletableFuture<String[]> list() {
+        return list("/");
+    }
+
+    // whole directory, following the server's NEXT cursors page by page
+    public CompletableFuture<String[]> list(String dir) {
+        return checkName(dir).thenCompose(v -> listFrom(dir, null, new ArrayList<>()));
+    }
+
+    public CompletableFuture<Void> mkdir(String dir) {
+        return checkName(dir).thenCompose(v -> submit("MKDIR " + dir, false)).thenApply(r -> null);
+    }
+
+    public CompletableFuture<Void> rmdir(String dir) {
+        return checkName(dir).thenCompose(v -> submit("RMDIR " + dir, false)).thenApply(r -> null);
+    }
+
+    public CompletableFuture<Void> rename(String from, String to) {
+        return checkName(from).thenCompose(v -> checkName(to))
+                .thenCompose(v -> submit("RENAME " + from + " " + to, false)).thenApply(r -> null);
+    }
+
+    // call listener with (type, path) for changes to a path, or to everything under a
+    // prefix when the pattern ends in '*' ("logs/*"). types are CREATE, WRITE and DELETE,
+    // OVERFLOW when the server had to drop events (LIST again to catch up) and
+    // DISCONNECTED when the connection is lost, after which watches have to be set up again
+    public CompletableFuture<Void> watch(String pattern, BiConsumer<String, String> listener) {
+        ClientConnection c;
+        try {
+            c = watchConnection();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        watches.put(pattern, listener);
+        return checkName(pattern).thenCompose(v -> c.send("WATCH " + pattern))
+                .whenComplete((r, e) -> {
+                    if (e != null) watches.remove(pattern, listener);
+                })
+                .thenApply(r -> null);
+    }
+
+    public CompletableFuture<Void> unwatch(String pattern) {
+        watches.remove(pattern);
+        ClientConnection c;
+        synchronized (watchLock) {
+            c = watchConn;
+        }
+        if (c == null || !c.isOpen()) return CompletableFuture.completedFuture(null);
+        return c.send("UNWATCH " + pattern).thenApply(r -> null);
+    }
+
+    // raw command, completes with whatever follows "SUCCESS:"
+    public CompletableFuture<String> send(String command) {
+        return submit(command, false);
+    }
+
+    // blocking stream over the file contents, fetched in ranges with the next
+    // one already requested while the current one is being consumed
+    public InputStream openInputStream(String name) throws IOException {
+        if (checkName(name).isCompletedExceptionally())
+            throw new IOException("invalid file name: " + name);
+        return new InputStream() {
+            private long offset = 0;
+            private ByteArrayInputStream current = new ByteArrayInputStream(new byte[0]);
+            private CompletableFuture<byte[]> next = fetch();
+            private boolean eof;
+
+            private CompletableFuture<byte[]> fetch() {
+                CompletableFuture<byte[]> f = FileClient.this.read(name, (int) offset, STREAM_CHUNK);
+                offset += STREAM_CHUNK;
+                return f;
+            }
+
+            // false once the last chunk is used up
+            private boolean fill() throws IOException {
+                while (current.available() == 0) {
+                    if (eof) return false;
+                    byte[] chunk = await(next);
+                    // a short chunk is the end of the file
+                    if (chunk.length < STREAM_CHUNK) eof = true;
+                    else next = fetch();
+                    current = new ByteArrayInputStream(chunk);
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return fill() ? current.read() : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                return fill() ? current.read(b, off, len) : -1;
+            }
+        };
+    }
+
+    // bytes are sent as one WRITE when the stream is closed
+    public OutputStream openOutputStream(String name) {
+        return new ByteArrayOutputStream() {
+            private boolean done;
+
+            @Override
+            public void close() throws IOException {
+                if (done) return;
+                done = true;
+                await(FileClient.this.write(name, toByteArray()));
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (watchLock) {
+            if (watchConn != null) watchConn.close();
+        }
+        for (int i = 0; i < pool.length(); i++) {
+            ClientConnection c = pool.getAndSet(i, null);
+            if (c != null) c.close();
+        }
+    }
+
+    private CompletableFuture<String[]> listFrom(String dir, String cursor, List<String> acc) {
+        String command = cursor == null ? "LIST " + dir : "LIST " + dir + " " + cursor;
+        return submit(command, true).thenCompose(r -> {
+            String next = null;
+            int at = r.lastIndexOf(" NEXT ");
+            if (at >= 0) {
+                next = r.substring(at + " NEXT ".length());
+                r = r.substring(0, at);
+            }
+            if (!r.equals("(no files)"))
+                acc.addAll(Arrays.asList(r.split(",")));
+            return next == null
+                    ? CompletableFuture.completedFuture(acc.toArray(new String[0]))
+                    : listFrom(dir, next, acc);
+        });
+    }
+
+    // reads and lists are safe to repeat once on a fresh connection
+    private CompletableFuture<String> submit(String line, boolean retry) {
+        return submit(line, retry, 0);
+    }
+
+    private CompletableFuture<String> submit(String line, boolean retry, int busyTries) {
+        CompletableFuture<String> f;
+        try {
+            f = acquire().send(line);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return f.exceptionallyCompose(e -> {
+            Throwable cause = unwrap(e);
+            if (retry && cause instanceof IOException)
+                return submit(line, false, busyTries);
+            // back off, doubling each time
+            if (busyTries < BUSY_RETRIES && isBusy(cause))
+                return CompletableFuture.supplyAsync(() -> null,
+                                CompletableFuture.delayedExecutor(BUSY_BACKOFF_MS << busyTries, TimeUnit.MILLISECONDS))
+                        .thenCompose(v -> submit(line, retry, busyTries + 1));
+            return CompletableFuture.failedFuture(e);
+        });
+    }
+
+    private static boolean isBusy(Throwable e) {
+        return e instanceof FileClientException && "BUSY".equals(((FileClientException) e).getResponse());
+    }
+
+    // least loaded connection, opening or reopening slots as needed
+    private ClientConnection acquire() throws IOException {
+        if (closed) throw new IOException("client is closed");
+
+        int n = pool.length();
+        int start = Math.floorMod(nextSlot.getAndIncrement(), n);
+        int best = start;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            int slot = (start + i) % n;
+            ClientConnection c = pool.get(slot);
+            int load = (c == null || !c.isOpen()) ? 0 : c.pendingCount();
+            if (load < bestLoad) {
+                best = slot;
+                bestLoad = load;
+            }
+        }
+
+        ClientConnection c = pool.get(best);
+        if (c != null && c.isOpen()) return c;
+
+        synchronized (slotLocks[best]) {
+            c = pool.get(best);
+            if (c == null || !c.isOpen()) {
+                c = new ClientConnection(host, port, CONNECT_TIMEOUT_MS);
+                pool.set(best, c);
+            }
+            return c;
+        }
+    }
+
+    private ClientConnection watchConnection() throws IOException {
+        if (closed) throw new IOException("client is closed");
+        synchronized (watchLock) {
+            if (watchConn == null || !watchConn.isOpen()) {
+                watchConn = new ClientConnection(host, port, CONNECT_TIMEOUT_MS);
+                watchConn.setEventListener(this::dispatch);
+            }
+            return watchConn;
+        }
+    }
+
+    // "<type> <path>" to every watch it matches, null means the connection went away
+    private void dispatch(String event) {
+        if (event == null) {
+            watches.forEach((pattern, l) -> l.accept("DISCONNECTED", null));
+            watches.clear();
+            return;
+        }
+        int sp = event.indexOf(' ');
+        String type = sp < 0 ? event : event.substring(0, sp);
+        String path = sp < 0 ? "" : event.substring(sp + 1);
+        watches.forEach((pattern, l) -> {
+            String p = pattern.replaceAll("^/+|/+$", "");
+            boolean hit = type.equals("OVERFLOW")
+                    || (p.endsWith("*") ? path.startsWith(p.substring(0, p.length() - 1)) : path.equals(p));
+            if (hit) l.accept(type, path);
+        });
+    }
+
+    private static CompletableFuture<Void> checkName(String name) {
+        if (name == null || name.isEmpty() || name.indexOf(' ') >= 0
+                || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0)
+            return CompletableFuture.failedFuture(new IllegalArgumentException("invalid file name: " + name));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+            e = e.getCause();
+        return e;
+    }
+
+    private static <T> T await(CompletableFuture<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package ca.concordia.client;
+
+// server answered a request with an ERROR line
+public class FileClientException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final String response;
+
+    public FileClientException(String response) {
+        super(response);
+        this.response = response;
+    }
+
+    // raw line the server sent back
+    public String getResponse() { return response; }
+}
@@ -0,0 +1,159 @@
+import ca.concordia.client.FileClient;
+import ca.concordia.client.FileClientException;
+import helpers.ScriptedServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the client against a scripted server, so failures can be forced on purpose
+public class FileClientTests {
+
+    // "READ <name>" comes back as the name, anything else as plain SUCCESS
+    private static List<String> echo(String request) {
+        if (request.startsWith("READ "))
+            return List.of("SUCCESS: " + request.substring("READ ".length()));
+        if (request.startsWith("LIST"))
+            return List.of("SUCCESS: a,b");
+        return List.of("SUCCESS");
+    }
+
+    private static Throwable failure(CompletableFuture<?> f) {
+        ExecutionException e = assertThrows(ExecutionException.class, f::get);
+        return e.getCause();
+    }
+
+    @Test
+    @Timeout(10)
+    void testPipelinedResponsesMatchTheirRequests() throws Exception {
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> echo(req));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+            for (int i = 0; i < 200; i++) reads.add(client.read("f" + i));
+
+            for (int i = 0; i < 200; i++)
+                assertEquals("f" + i, new String(reads.get(i).get(), StandardCharsets.UTF_8));
+            // all of them went down the one connection
+            assertEquals(1, server.connections());
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void testReconnectsAfterServerClosesConnection() throws Exception {
+        // the first connection is dropped on its first request
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> conn == 0 ? null : echo(req));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            assertInstanceOf(IOException.class, failure(client.create("a")));
+
+            client.create("b").get();
+            assertEquals(2, server.connections());
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void testReadAndListAreRetriedOnce() throws Exception {
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> conn == 0 ? null : echo(req));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            assertEquals("doc", new String(client.read("doc").get(), StandardCharsets.UTF_8));
+            assertEquals(List.of("READ doc", "READ doc"), server.requests());
+        }
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> conn == 0 ? null : echo(req));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            assertArrayEquals(new String[]{"a", "b"}, client.list().get());
+            assertEquals(2, server.requests().size());
+        }
+        // only once, a second drop is the caller's problem
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> conn < 2 ? null : echo(req));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            assertInstanceOf(IOException.class, failure(client.read("doc")));
+            assertEquals(2, server.requests().size());
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void testWriteIsNotRetried() throws Exception {
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> conn == 0 ? null : echo(req));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+            assertInstanceOf(IOException.class, failure(client.write("doc", data)));
+            assertEquals(List.of("WRITE doc hello"), server.requests());
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void testBusyIsRetriedWithBackoff() throws Exception {
+        AtomicInteger busy = new AtomicInteger(2);
+        try (ScriptedServer server = new ScriptedServer((conn, req) ->
+                     busy.getAndDecrement() > 0 ? List.of("BUSY") : echo(req));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            long t0 = System.nanoTime();
+            client.write("doc", "x".getBytes(StandardCharsets.UTF_8)).get();
+            long ms = (System.nanoTime() - t0) / 1_000_000;
+
+            assertEquals(3, server.requests().size());
+            // 20 ms then 40 ms
+            assertTrue(ms >= 60, "retried after " + ms + " ms");
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void testBusyGivesUpAfterFourRetries() throws Exception {
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> List.of("BUSY"));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            Throwable e = failure(client.read("doc"));
+            assertInstanceOf(FileClientException.class, e);
+            assertEquals("BUSY", ((FileClientException) e).getResponse());
+            assertEquals(5, server.requests().size());
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void testEventsDoNotConsumeResponses() throws Exception {
+        // an event for the first watch arrives just ahead of the answer to the second
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> req.equals("WATCH b")
+                     ? List.of("EVENT WRITE a", "SUCCESS: watching b")
+                     : List.of("SUCCESS: watching a"));
+             FileClient client = new FileClient("localhost", server.port(), 1)) {
+            List<String> events = new CopyOnWriteArrayList<>();
+            client.watch("a", (type, path) -> events.add(type + " " + path)).get();
+            client.watch("b", (type, path) -> events.add(type + " " + path)).get();
+
+            assertEquals(List.of("WRITE a"), events);
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void testStreamKeepsCharactersSplitAcrossChunks() throws Exception {
+        // two-byte characters after one odd byte, so the 512 byte chunks end mid-character
+        byte[] file = ("x" + "é".repeat(700)).getBytes(StandardCharsets.UTF_8);
+        try (ScriptedServer server = new ScriptedServer((conn, req) -> {
+                 String[] p = req.split(" ");
+                 int from = Math.min(Integer.parseInt(p[2]), file.length);
+                 int to = Math.min(from + Integer.parseInt(p[3]), file.length);
+                 return List.of("SUCCESS: " + Base64.getEncoder().encodeToString(Arrays.copyOfRange(file, from, to)));
+             });
+             FileClient client = new FileClient("localhost", server.port(), 1);
+             InputStream in = client.openInputStream("doc")) {
+            assertArrayEquals(file, in.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package helpers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// stands in for the file server: every request line goes to a script that
+// decides what to send back, so tests can drop connections or answer BUSY
+public class ScriptedServer implements AutoCloseable {
+    public interface Script {
+        // lines to send back for a request on the conn-th connection (from 0),
+        // null drops the connection without answering
+        List<String> answer(int conn, String request) throws Exception;
+    }
+
+    private final ServerSocket listener;
+    private final Script script;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<String> requests = new ArrayList<>();
+
+    public ScriptedServer(Script script) throws IOException {
+        this.listener = new ServerSocket(0);
+        this.script = script;
+        Thread t = new Thread(this::acceptLoop, "scripted-server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public int port() { return listener.getLocalPort(); }
+
+    public int connections() { return connections.get(); }
+
+    // every request line seen so far, in arrival order
+    public synchronized List<String> requests() { return new ArrayList<>(requests); }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                Socket s = listener.accept();
+                int conn = connections.getAndIncrement();
+                Thread t = new Thread(() -> serve(conn, s), "scripted-conn-" + conn);
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(int conn, Socket s) {
+        try (s) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                synchronized (this) {
+                    requests.add(line);
+                }
+                List<String> reply = script.answer(conn, line);
+                if (reply == null) return;
+                for (String r : reply) out.print(r + "\n");
+                out.flush();
+            }
+        } catch (Exception e) {
+            // dropped
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+    }
+}
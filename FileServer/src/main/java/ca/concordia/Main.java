@@ -1,13 +1,96 @@
 package ca.concordia;
 
+import ca.concordia.filesystem.Codec;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.replication.ReplicationMode;
 import ca.concordia.server.FileServer;
 
+import java.io.IOException;
+import java.net.ServerSocket;
+
 public class Main {
     public static void main(String[] args) {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        // -Dfs.volumes=a.dat,/disk2/b.dat spreads files over several volumes
+        String[] volumes = System.getProperty("fs.volumes", "filesystem.dat").split(",");
+        int port = Integer.getInteger("fs.port", 12345);
+        // -Dfs.handoff=true, on both, lets a server take over from one running on the same
+        // port and volumes: it binds next to it and new clients wait in its backlog while
+        // the old one drains, for up to -Dfs.handoffWaitMs. without it a second server fails to start
+        boolean handoff = Boolean.getBoolean("fs.handoff");
+        ServerSocket listener;
+        try {
+            listener = FileServer.bind(port, handoff);
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + port + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        FileServer server;
+        try {
+            server = new FileServer(port, volumes, 10 * 128, handoff ? Long.getLong("fs.handoffWaitMs", 30000) : 0);
+        } catch (RuntimeException e) {
+            // don't leave clients queued on a port nobody will serve
+            try { listener.close(); } catch (IOException ignored) {}
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.err.println("Could not open the volumes: " + cause.getMessage());
+            System.exit(1);
+            return;
+        }
+        try {
+            for (FileSystemManager fs : server.getVolumes()) {
+                // -Dfs.dedup=true shares identical data blocks between files
+                fs.setDedupEnabled(Boolean.getBoolean("fs.dedup"));
+                // -Dfs.compression=deflate_fast compresses newly written files
+                fs.setCompression(Codec.valueOf(System.getProperty("fs.compression", "none").toUpperCase()));
+            }
+        } catch (Exception e) {
+            System.err.println("Could not configure file system: " + e.getMessage());
+        }
+
+        // -Dfs.replication.port=12346 makes this a primary replicas can follow,
+        // -Dfs.replicaOf=host:12346 makes it a read only replica
+        Integer replicationPort = Integer.getInteger("fs.replication.port");
+        String replicaOf = System.getProperty("fs.replicaOf");
+        if (replicaOf != null) {
+            String[] hostPort = replicaOf.split(":");
+            server.replicateFrom(hostPort[0], Integer.parseInt(hostPort[1]));
+        } else if (replicationPort != null) {
+            server.enableReplication(replicationPort, ReplicationMode.valueOf(
+                    System.getProperty("fs.replication.mode", "async").toUpperCase()));
+        }
+
+        // -Dfs.writeBehindMs=50 buffers and coalesces writes for up to that long
+        Long writeBehindMs = Long.getLong("fs.writeBehindMs");
+        if (writeBehindMs != null && replicaOf == null)
+            server.enableWriteBehind(writeBehindMs, Long.getLong("fs.writeBehindBytes", 64 * 1024));
+
+        // -Dfs.scrubBlocksPerSec=20 checks every data block against its checksum in the background
+        String scrubRate = System.getProperty("fs.scrubBlocksPerSec");
+        if (scrubRate != null)
+            server.enableScrubbing(Double.parseDouble(scrubRate));
+
+        // -Dfs.backupDir=/backups enables the BACKUP command
+        String backupDir = System.getProperty("fs.backupDir");
+        if (backupDir != null)
+            server.setBackupDir(backupDir);
+
+        // overload protection: -Dfs.maxInFlight=64 -Dfs.maxQueued=256 -Dfs.queueWaitMs=100
+        // answer BUSY past that, -Dfs.opsPerSec and -Dfs.bytesPerSec slow down each
+        // connection, -Dfs.maxRequestBytes caps a request line
+        server.setAdmission(Integer.getInteger("fs.maxInFlight", 64), Integer.getInteger("fs.maxQueued", 256),
+                Long.getLong("fs.queueWaitMs", 100));
+        server.setRateLimits(Double.parseDouble(System.getProperty("fs.opsPerSec", "0")),
+                Double.parseDouble(System.getProperty("fs.bytesPerSec", "0")));
+        server.setMaxRequestBytes(Integer.getInteger("fs.maxRequestBytes", 64 * 1024));
+
+        // SIGTERM drains: running requests finish, buffered writes are flushed and the
+        // volumes synced before exit. -Dfs.drainMs bounds the wait for requests
+        long drainMs = Long.getLong("fs.drainMs", 5000);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.shutdown(drainMs), "shutdown"));
+
         // Start the file server
-        server.start();
+        server.start(listener);
     }
 }
\ No newline at end of file
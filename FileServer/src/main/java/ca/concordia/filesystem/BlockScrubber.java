@@ -0,0 +1,56 @@
+package ca.concordia.filesystem;
+
+import java.util.List;
+
+// walks every data block of the volumes in the background and checks it against
+// its checksum, at most blocksPerSec so it never competes with clients.
+// it only reports: corrupt blocks are logged and listed by getCorruptBlocks on
+// their volume until the file holding them is rewritten
+public class BlockScrubber {
+
+    private final List<FileSystemManager> volumes;
+    private final double blocksPerSec;
+    private volatile long passes = 0;
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    public BlockScrubber(List<FileSystemManager> volumes, double blocksPerSec) {
+        if (blocksPerSec <= 0)
+            throw new IllegalArgumentException("blocksPerSec must be positive");
+        this.volumes = volumes;
+        this.blocksPerSec = blocksPerSec;
+        this.thread = new Thread(this::scrubLoop, "block-scrubber");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    // full passes over every volume so far
+    public long getPasses() { return passes; }
+
+    private void scrubLoop() {
+        long pauseNanos = (long) (1e9 / blocksPerSec);
+        while (running) {
+            for (FileSystemManager v : volumes) {
+                for (int b = 0; b < v.getBlockCount() && running; b++) {
+                    try {
+                        v.scrubBlock(b);
+                        Thread.sleep(pauseNanos / 1_000_000, (int) (pauseNanos % 1_000_000));
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        System.err.println("Scrub of block " + b + " failed: " + e.getMessage());
+                    }
+                }
+            }
+            passes++;
+        }
+    }
+}
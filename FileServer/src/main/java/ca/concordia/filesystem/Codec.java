@@ -0,0 +1,71 @@
+package ca.concordia.filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// how a file's bytes are stored in its blocks.
+// the id is what goes on disk, never reorder them
+public enum Codec {
+    NONE(0, 0),
+    DEFLATE_FAST(1, Deflater.BEST_SPEED),
+    DEFLATE(2, Deflater.DEFAULT_COMPRESSION);
+
+    private final byte id;
+    private final int level;
+
+    Codec(int id, int level) {
+        this.id = (byte) id;
+        this.level = level;
+    }
+
+    public byte getId() { return id; }
+
+    public static Codec fromId(byte id) {
+        for (Codec c : values())
+            if (c.id == id) return c;
+        throw new IllegalArgumentException("unknown codec " + id);
+    }
+
+    public byte[] compress(byte[] data) {
+        if (this == NONE) return data;
+
+        // raw deflate, the zlib header and checksum would eat a lot of a 128 byte block
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buff = new byte[256];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buff);
+                out.write(buff, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] decompress(byte[] stored, int size) throws DataFormatException {
+        if (this == NONE) return stored;
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored);
+            byte[] out = new byte[size];
+            int n = 0;
+            while (n < size && !inflater.finished()) {
+                int got = inflater.inflate(out, n, size - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+            }
+            if (n != size)
+                throw new DataFormatException("expected " + size + " bytes, got " + n);
+            return out;
+        } finally {
+            inflater.end();
+        }
+    }
+}
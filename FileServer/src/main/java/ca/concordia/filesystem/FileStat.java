@@ -0,0 +1,27 @@
+package ca.concordia.filesystem;
+
+// size and version of a file, and its contents when the call returned them.
+// the version changes every time the contents do and is never 0 for an existing file
+public class FileStat {
+    private final int size;
+    private final long version;
+    private final int checksum;
+    private final byte[] data;
+
+    public FileStat(int size, long version, int checksum, byte[] data) {
+        this.size = size;
+        this.version = version;
+        this.checksum = checksum;
+        this.data = data;
+    }
+
+    public int getSize() { return size; }
+
+    public long getVersion() { return version; }
+
+    // CRC32C of the contents
+    public int getChecksum() { return checksum; }
+
+    // null when the contents were not sent, e.g. they hadn't changed
+    public byte[] getData() { return data; }
+}
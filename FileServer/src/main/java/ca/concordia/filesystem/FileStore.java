@@ -0,0 +1,55 @@
+package ca.concordia.filesystem;
+
+import java.util.Arrays;
+
+// what the server needs from storage, one volume or many.
+// paths use '/' between directories, the root is "" or "/"
+public interface FileStore {
+    void createFile(String name) throws Exception;
+
+    void writeFile(String name, byte[] data) throws Exception;
+
+    byte[] readFile(String name) throws Exception;
+
+    // length bytes from offset, shorter at the end of the file
+    default byte[] readFile(String name, int offset, int length) throws Exception {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("ERROR: invalid range");
+        byte[] data = readFile(name);
+        int end = (int) Math.min(data.length, (long) offset + length);
+        return offset >= end ? new byte[0] : Arrays.copyOfRange(data, offset, end);
+    }
+
+    void deleteFile(String name) throws Exception;
+
+    // size and version, no data
+    FileStat stat(String name) throws Exception;
+
+    // stat with the contents, which are left out when the file is still at knownVersion
+    FileStat readFileIfChanged(String name, long knownVersion) throws Exception;
+
+    // write only if the file is at expectedVersion, 0 meaning it must not exist yet.
+    // returns the new version
+    long writeFileIfMatch(String name, long expectedVersion, byte[] data) throws Exception;
+
+    // names in the root directory, directories end with '/'
+    String[] listFiles();
+
+    // up to limit names of a directory, starting after the cursor name (null for the start)
+    String[] listDirectory(String path, String after, int limit) throws Exception;
+
+    void createDirectory(String path) throws Exception;
+
+    void deleteDirectory(String path) throws Exception;
+
+    void rename(String from, String to) throws Exception;
+
+    // on disk before returning, even when plain writes are buffered
+    default void writeFileSync(String name, byte[] data) throws Exception {
+        writeFile(name, data);
+    }
+
+    // push out anything still buffered
+    default void flush() throws Exception {
+    }
+}
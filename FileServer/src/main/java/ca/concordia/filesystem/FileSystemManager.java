@@ -3,22 +3,114 @@ package ca.concordia.filesystem;
 import ca.concordia.filesystem.datastructures.FEntry;
 import ca.concordia.filesystem.datastructures.FNode;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
 
-public class FileSystemManager {
+public class FileSystemManager implements FileStore {
 
     private final int MAXFILES = 5;
     private final int MAXBLOCKS = 10;
     private RandomAccessFile disk;
+    // reads go through positional channel reads, concurrent readers can't share a seek pointer
+    private FileChannel channel;
+    // held while the volume is open so two processes never write it at once
+    private FileLock volumeLock;
+    private long lockWaitMs;
+    private long loadMs;
 
     private static final int BLOCK_SIZE = 128;
+    // sizes are shorts in the entry, compression would otherwise let a bigger file in
+    public static final int MAX_FILE_SIZE = Short.MAX_VALUE;
+    // data blocks kept after a range read, mostly ones read ahead of the reader
+    private static final int CACHE_BLOCKS = 8;
+    // most blocks read ahead of a sequential reader
+    private static final int MAX_READAHEAD = 4;
 
     private FEntry[] inodeTable;
     private FNode[] fNodes;
+    // free nodes, a used node points at a data block through its blockIndex
     private boolean[] freeBlockList;
+    // how many nodes point at each data block
+    private int[] blockRefs;
+
+    // dedup: content hash -> data block holding that content.
+    // freed blocks stay indexed until reused so rewriting the same bytes is free
+    private boolean dedupEnabled = false;
+    private final Map<Long, Integer> blockByHash = new HashMap<>();
+    private long[] blockHash;
+    private boolean[] blockHashed;
+    private long logicalBlockWrites = 0;
+    private long blockWritesSaved = 0;
+
+    // next file version to hand out, above every version the volume ever handed out.
+    // kept on disk so deleting the newest file can't bring an old version back
+    private long nextVersion = 1;
+    private long writesSkipped = 0;
+
+    // CRC32C of every data block, checked whenever a block comes off the disk
+    private int[] blockCrc;
+    private volatile boolean verifyChecksums = true;
+    private final Set<Integer> corruptBlocks = ConcurrentHashMap.newKeySet();
+    private final LongAdder checksumErrors = new LongAdder();
+    private final LongAdder scrubbedBlocks = new LongAdder();
+
+    // snapshots by name. each holds a reference on every data block it uses, and
+    // writers only ever fill blocks nobody references, so the old contents stay put.
+    // kept in memory, they go away with the process
+    private final Map<String, Snapshot> snapshots = new TreeMap<>();
+
+    // codec used for new writes
+    private Codec compression = Codec.NONE;
+    // keep small files in the entry table
+    private boolean inlineEnabled = true;
+
+    // directories: parent slot -> children sorted by name, rebuilt from the parent
+    // pointers on load. ROOT is the parent of top level entries
+    private static final int ROOT = -1;
+    private static final int NOT_FOUND = -2;
+    private final Map<Integer, TreeMap<String, Integer>> children = new HashMap<>();
+    // resolved paths, filled by readers so it has to be concurrent
+    private final Map<String, Integer> pathCache = new ConcurrentHashMap<>();
+
+    // readahead: data block -> contents, filled by readers and dropped when a block is rewritten
+    private final Map<Integer, byte[]> blockCache = Collections.synchronizedMap(
+            new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                    return size() > CACHE_BLOCKS;
+                }
+            });
+    // slot -> where its range reader is, to tell sequential from random access
+    private final Map<Integer, ReadStream> streams = new ConcurrentHashMap<>();
+    private final LongAdder diskReads = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
 
     // Layout calculations
     private final int FENTRY_SIZE = 15;
@@ -27,14 +119,39 @@ public class FileSystemManager {
     private final int DATA_START_OFFSET;
     private final int FENTRIES_START = 0;
     private final int FNODES_START;
+    // extra metadata goes after the data area so volumes made before it still load
+    private final int CODEC_INFO_SIZE = 3;
+    private final int CODEC_INFO_START;
+    private final int INLINE_SIZE = 2 + FEntry.INLINE_MAX;
+    private final int INLINE_START;
+    private final int TREE_INFO_SIZE = 3;
+    private final int TREE_INFO_START;
+    private final int VERSION_INFO_SIZE = 12;
+    private final int VERSION_INFO_START;
+    private final int BLOCK_CRC_SIZE = 4;
+    private final int BLOCK_CRC_START;
+    private final int VOLUME_INFO_SIZE = 8;
+    private final int VOLUME_INFO_START;
     // Rreaders writer lock for  synchronization
     private final ReadWriteLock rwLock = new ReentrantReadWriteLock(true);
 
     public FileSystemManager(String filename, int totalSize) {
+        this(filename, totalSize, 0);
+    }
+
+    // lockWaitMs: how long to wait for another process to let go of the volume,
+    // only worth waiting for when taking over from a server that is draining
+    public FileSystemManager(String filename, int totalSize, long lockWaitMs) {
         // Calculate disk layout
         METADATA_SIZE = (MAXFILES * FENTRY_SIZE) + (MAXBLOCKS * FNODE_SIZE);
         FNODES_START = MAXFILES * FENTRY_SIZE;
         DATA_START_OFFSET = METADATA_SIZE;
+        CODEC_INFO_START = DATA_START_OFFSET + MAXBLOCKS * BLOCK_SIZE;
+        INLINE_START = CODEC_INFO_START + MAXFILES * CODEC_INFO_SIZE;
+        TREE_INFO_START = INLINE_START + MAXFILES * INLINE_SIZE;
+        VERSION_INFO_START = TREE_INFO_START + MAXFILES * TREE_INFO_SIZE;
+        BLOCK_CRC_START = VERSION_INFO_START + MAXFILES * VERSION_INFO_SIZE;
+        VOLUME_INFO_START = BLOCK_CRC_START + MAXBLOCKS * BLOCK_CRC_SIZE;
         try {
         File f = new File(filename);
         boolean existed = f.exists();
@@ -43,8 +160,29 @@ public class FileSystemManager {
         this.inodeTable = new FEntry[MAXFILES];
         this.fNodes = new FNode[MAXBLOCKS];
         this.freeBlockList = new boolean[MAXBLOCKS];
+        this.blockRefs = new int[MAXBLOCKS];
+        this.blockHash = new long[MAXBLOCKS];
+        this.blockHashed = new boolean[MAXBLOCKS];
+        this.blockCrc = new int[MAXBLOCKS];
 
         this.disk = new RandomAccessFile(filename, "rw");
+        this.channel = disk.getChannel();
+
+        // a server taking over waits here until the old process has drained and let go
+        long t0 = System.nanoTime();
+        this.volumeLock = tryLockVolume();
+        if (volumeLock == null && lockWaitMs > 0) {
+            System.out.println("Waiting for another process to release " + filename + "...");
+            long deadline = t0 + lockWaitMs * 1_000_000;
+            while (volumeLock == null && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+                volumeLock = tryLockVolume();
+            }
+        }
+        if (volumeLock == null)
+            throw new IOException("ERROR: volume " + filename + " is in use by another server");
+        long t1 = System.nanoTime();
+        this.lockWaitMs = (t1 - t0) / 1_000_000;
 
         if (!existed) {
             // initialize new file system
@@ -55,20 +193,31 @@ public class FileSystemManager {
             System.out.println("Loading existing FS...");
             loadExistingFileSystem();   
         }
+        loadMs = (System.nanoTime() - t1) / 1_000_000;
 
     } catch (Exception e) {
+        try {
+            if (disk != null) disk.close();
+        } catch (Exception ignored) {}
         throw new RuntimeException("Failed to initialize FileSystemManager", e);
     }
 }
 
+    // null while someone else holds it, this JVM included
+    private FileLock tryLockVolume() throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
     private void initializeNewFileSystem() throws Exception {
         // Initialize all FEntries as empty
         for (int i = 0; i < MAXFILES; i++) {
             FEntry empty = new FEntry("", (short)0, (short)-1);
             inodeTable[i] = empty;
-
-            disk.seek(FENTRIES_START + i * FENTRY_SIZE);
-            disk.write(empty.toBytes());
+            writeEntry(i);
         }
 
         // Initialize all FNodes as free 
@@ -80,10 +229,17 @@ public class FileSystemManager {
 
             disk.seek(FNODES_START + i * FNODE_SIZE);
             disk.write(node.toBytes());
+
+            blockCrc[i] = checksum(new byte[BLOCK_SIZE]);
+            writeBlockCrc(i);
         }
+        writeVolumeInfo();
     }
 
     private void loadExistingFileSystem() throws Exception {
+    // which metadata regions exist is decided before upgrading any of them writes past the end
+        long length = disk.length();
+
     // Load FEntries from disk
         for (int i = 0; i < MAXFILES; i++) {
             disk.seek(FENTRIES_START + i * FENTRY_SIZE);
@@ -92,6 +248,48 @@ public class FileSystemManager {
             inodeTable[i] = FEntry.fromBytes(entry);
         }
 
+    // older volumes have no codec info, everything in them is stored raw
+        boolean hasCodecInfo = length >= CODEC_INFO_START + MAXFILES * CODEC_INFO_SIZE;
+        for (int i = 0; i < MAXFILES; i++) {
+            if (hasCodecInfo) {
+                disk.seek(CODEC_INFO_START + i * CODEC_INFO_SIZE);
+                byte[] info = new byte[CODEC_INFO_SIZE];
+                disk.readFully(info);
+                inodeTable[i].codecInfoFromBytes(info);
+            } else {
+                writeEntry(i);
+            }
+        }
+
+    // inline records, none on older volumes
+        boolean hasInline = length >= INLINE_START + MAXFILES * INLINE_SIZE;
+        for (int i = 0; i < MAXFILES; i++) {
+            if (hasInline) {
+                disk.seek(INLINE_START + i * INLINE_SIZE);
+                byte[] rec = new byte[INLINE_SIZE];
+                disk.readFully(rec);
+                inodeTable[i].inlineFromBytes(rec);
+            } else {
+                writeInline(i);
+            }
+        }
+
+    // tree info, older volumes are flat so everything sits in the root
+        boolean hasTreeInfo = length >= TREE_INFO_START + MAXFILES * TREE_INFO_SIZE;
+        for (int i = 0; i < MAXFILES; i++) {
+            if (hasTreeInfo) {
+                disk.seek(TREE_INFO_START + i * TREE_INFO_SIZE);
+                byte[] info = new byte[TREE_INFO_SIZE];
+                disk.readFully(info);
+                inodeTable[i].treeInfoFromBytes(info);
+            } else {
+                writeTreeInfo(i);
+            }
+        }
+        for (int i = 0; i < MAXFILES; i++)
+            if (!inodeTable[i].getFilename().isEmpty())
+                childrenOf(inodeTable[i].getParent()).put(inodeTable[i].getFilename(), i);
+
     // load FNodes from disk and build free block list
         for (int i = 0; i < MAXBLOCKS; i++) {
             disk.seek(FNODES_START + i * FNODE_SIZE);
@@ -99,76 +297,478 @@ public class FileSystemManager {
             disk.readFully(buff);
             fNodes[i] = FNode.fromBytes(buff);
             freeBlockList[i] = (fNodes[i].getBlockIndex() < 0);
+            if (!freeBlockList[i])
+                blockRefs[fNodes[i].getBlockIndex()]++;
+        }
+
+    // block checksums, older volumes trust what is on disk now. before the versions,
+    // making those up reads the blocks
+        boolean hasBlockCrc = length >= BLOCK_CRC_START + MAXBLOCKS * BLOCK_CRC_SIZE;
+        for (int b = 0; b < MAXBLOCKS; b++) {
+            if (hasBlockCrc) {
+                disk.seek(BLOCK_CRC_START + b * BLOCK_CRC_SIZE);
+                blockCrc[b] = disk.readInt();
+            } else {
+                byte[] buff = new byte[BLOCK_SIZE];
+                if (blockRefs[b] > 0) {
+                    disk.seek(DATA_START_OFFSET + b * BLOCK_SIZE);
+                    disk.readFully(buff);
+                }
+                blockCrc[b] = checksum(buff);
+                writeBlockCrc(b);
+            }
+        }
+
+    // versions and checksums, older volumes get them made up from the contents
+        boolean hasVersionInfo = length >= VERSION_INFO_START + MAXFILES * VERSION_INFO_SIZE;
+        for (int i = 0; i < MAXFILES; i++) {
+            FEntry e = inodeTable[i];
+            if (hasVersionInfo) {
+                disk.seek(VERSION_INFO_START + i * VERSION_INFO_SIZE);
+                byte[] info = new byte[VERSION_INFO_SIZE];
+                disk.readFully(info);
+                e.versionInfoFromBytes(info);
+            } else {
+                if (!e.getFilename().isEmpty()) {
+                    e.setVersion(nextVersion++);
+                    if (!e.isDirectory()) e.setChecksum(checksum(readContent(e)));
+                }
+                writeVersionInfo(i);
+            }
+            nextVersion = Math.max(nextVersion, e.getVersion() + 1);
+        }
+
+    // the version high-water mark, older volumes only know the versions still in use
+        if (length >= VOLUME_INFO_START + VOLUME_INFO_SIZE) {
+            disk.seek(VOLUME_INFO_START);
+            nextVersion = Math.max(nextVersion, disk.readLong());
         }
+        writeVolumeInfo();
     }
 
-    public String[] listFiles() {
+    // turn content dedup on or off, existing blocks get indexed when enabled
+    public void setDedupEnabled(boolean enabled) throws Exception {
+        rwLock.writeLock().lock();
+        try {
+            if (enabled && !dedupEnabled) {
+                for (int b = 0; b < MAXBLOCKS; b++) {
+                    if (blockRefs[b] == 0) continue;
+                    byte[] buff = new byte[BLOCK_SIZE];
+                    disk.seek(DATA_START_OFFSET + b * BLOCK_SIZE);
+                    disk.readFully(buff);
+                    indexBlock(b, buff);
+                }
+            } else if (!enabled) {
+                blockByHash.clear();
+                Arrays.fill(blockHashed, false);
+            }
+            dedupEnabled = enabled;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    public boolean isDedupEnabled() { return dedupEnabled; }
+
+    // codec for files written from now on, existing files keep theirs
+    public void setCompression(Codec codec) {
+        rwLock.writeLock().lock();
+        try {
+            this.compression = codec;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    public Codec getCompression() { return compression; }
+
+    // when off, small files go to blocks like everything else
+    public void setInlineEnabled(boolean enabled) {
+        rwLock.writeLock().lock();
+        try {
+            this.inlineEnabled = enabled;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    public boolean isInlineEnabled() { return inlineEnabled; }
+
+    // file sizes as seen by clients
+    public long getLogicalBytes() {
         rwLock.readLock().lock();
         try {
-            int count = 0;
+            long total = 0;
             for (FEntry e : inodeTable)
-                if (e != null && !e.getFilename().isEmpty()) count++;
+                if (e != null && !e.getFilename().isEmpty()) total += e.getFilesize();
+            return total;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
 
-            String[] out = new String[count];
-            int idx = 0;
+    // bytes the files take up in their blocks after compression
+    public long getStoredBytes() {
+        rwLock.readLock().lock();
+        try {
+            long total = 0;
             for (FEntry e : inodeTable)
-                if (e != null && !e.getFilename().isEmpty())
-                    out[idx++] = e.getFilename();
+                if (e != null && !e.getFilename().isEmpty()) total += e.getStoredSize();
+            return total;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    // blocks referenced by files / data blocks actually stored
+    public double getDedupRatio() {
+        rwLock.readLock().lock();
+        try {
+            int physical = getUsedDataBlocks();
+            return physical == 0 ? 1.0 : (double) getUsedNodes() / physical;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    // blocks as the files see them
+    public int getUsedNodes() {
+        rwLock.readLock().lock();
+        try {
+            int used = 0;
+            for (int b = 0; b < MAXBLOCKS; b++)
+                if (!freeBlockList[b]) used++;
+            return used;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
 
-            return out;
+    // blocks actually holding data
+    public int getUsedDataBlocks() {
+        rwLock.readLock().lock();
+        try {
+            int used = 0;
+            for (int b = 0; b < MAXBLOCKS; b++)
+                if (blockRefs[b] > 0) used++;
+            return used;
         } finally {
             rwLock.readLock().unlock();
         }
     }
 
+    // block writes requested by writeFile since startup
+    public long getLogicalBlockWrites() { return logicalBlockWrites; }
+
+    // block writes skipped because the content was already on disk
+    public long getBlockWritesSaved() { return blockWritesSaved; }
+
+    // read calls made to the OS for file data, one per run of adjacent blocks
+    public long getDiskReads() { return diskReads.sum(); }
+
+    // blocks served from the readahead cache
+    public long getCacheHits() { return cacheHits.sum(); }
+
+    // writes that matched what was already stored and were not done
+    public long getWritesSkipped() { return writesSkipped; }
+
+    // reads check every block against its checksum, off only to measure what that costs
+    public void setChecksumsEnabled(boolean enabled) { this.verifyChecksums = enabled; }
+
+    public boolean isChecksumsEnabled() { return verifyChecksums; }
+
+    // time spent at startup waiting for the volume lock, then reading the metadata
+    public long getLockWaitMs() { return lockWaitMs; }
+
+    public long getLoadMs() { return loadMs; }
+
+    // blocks that failed their checksum, on a read or a scrub, and weren't rewritten since
+    public Set<Integer> getCorruptBlocks() { return Set.copyOf(corruptBlocks); }
+
+    public long getChecksumErrors() { return checksumErrors.sum(); }
+
+    public long getScrubbedBlocks() { return scrubbedBlocks.sum(); }
+
+    // names in the root directory, directories end with '/'
+    public String[] listFiles() {
+        rwLock.readLock().lock();
+        try {
+            return pageOf(ROOT, null, Integer.MAX_VALUE);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    // up to limit names of a directory, starting after the cursor name (null for the start)
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        rwLock.readLock().lock();
+        try {
+            int dir = lookup(path);
+            if (dir == NOT_FOUND || (dir != ROOT && !inodeTable[dir].isDirectory()))
+                throw new Exception("ERROR: directory '" + path + "' does not exist");
+            return pageOf(dir, after, limit);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    private String[] pageOf(int dir, String after, int limit) {
+        TreeMap<String, Integer> kids = children.get(dir);
+        if (kids == null) return new String[0];
+
+        SortedMap<String, Integer> rest = after == null ? kids : kids.tailMap(after, false);
+        List<String> out = new ArrayList<>(Math.min(limit, rest.size()));
+        for (Map.Entry<String, Integer> kid : rest.entrySet()) {
+            if (out.size() >= limit) break;
+            out.add(inodeTable[kid.getValue()].isDirectory() ? kid.getKey() + "/" : kid.getKey());
+        }
+        return out.toArray(new String[0]);
+    }
+
     public void createFile(String fileName) throws Exception {
         rwLock.writeLock().lock();
         try {
-            if (fileName.length() > 11)
-                throw new IllegalArgumentException("ERROR: filename too long");
-
-            for (FEntry e : inodeTable)
-                if (e != null && fileName.equals(e.getFilename()))
-                    return;   
-
-            int freeSlot = -1;
-            for (int i = 0; i < MAXFILES; i++) {
-                if (inodeTable[i] == null || inodeTable[i].getFilename().isEmpty()) {
-                    freeSlot = i;
-                    break;
-                }
+            String[] parts = splitPath(fileName);
+            if (parts.length == 0)
+                throw new IllegalArgumentException("ERROR: missing filename");
+
+            int existing = lookup(fileName);
+            if (existing >= 0) {
+                if (inodeTable[existing].isDirectory())
+                    throw new Exception("ERROR: '" + fileName + "' is a directory");
+                return;
             }
 
-            if (freeSlot == -1) throw new Exception("ERROR: no free file slots available");
+            addEntry(parentOf(parts), parts[parts.length - 1], false);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
 
-        // Create new FEntry
-            FEntry newEntry = new FEntry(fileName, (short)0, (short)-1);
-            inodeTable[freeSlot] = newEntry;
+    public void createDirectory(String path) throws Exception {
+        rwLock.writeLock().lock();
+        try {
+            String[] parts = splitPath(path);
+            if (parts.length == 0)
+                throw new Exception("ERROR: root already exists");
+            if (lookup(path) != NOT_FOUND)
+                throw new Exception("ERROR: '" + path + "' already exists");
 
-        // Write to disk
-            disk.seek(FENTRIES_START + (freeSlot * FENTRY_SIZE));
-            disk.write(newEntry.toBytes());
+            addEntry(parentOf(parts), parts[parts.length - 1], true);
         } finally {
             rwLock.writeLock().unlock();
         }
     }
 
-     // find file by name in table
-    private int findSlotForFile(String name) {
-        for (int i = 0; i < MAXFILES; i++)
-            if (inodeTable[i] != null && name.equals(inodeTable[i].getFilename()))
-                return i;
-        return -1;
+    // only empty directories can go
+    public void deleteDirectory(String path) throws Exception {
+        rwLock.writeLock().lock();
+        try {
+            int slot = lookup(path);
+            if (slot == ROOT)
+                throw new Exception("ERROR: cannot remove the root");
+            if (slot == NOT_FOUND || !inodeTable[slot].isDirectory())
+                throw new Exception("ERROR: directory '" + path + "' does not exist");
+            TreeMap<String, Integer> kids = children.get(slot);
+            if (kids != null && !kids.isEmpty())
+                throw new Exception("ERROR: directory '" + path + "' is not empty");
+
+            children.remove(slot);
+            removeEntry(slot);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
     }
 
-    // get a free data block
-    private int grabFreeBlock() throws Exception {
+    // move or rename a file or directory, the target must not exist yet
+    public void rename(String from, String to) throws Exception {
+        rwLock.writeLock().lock();
+        try {
+            int slot = lookup(from);
+            if (slot == ROOT)
+                throw new Exception("ERROR: cannot rename the root");
+            if (slot == NOT_FOUND)
+                throw new Exception("ERROR: '" + from + "' does not exist");
+
+            String[] parts = splitPath(to);
+            if (parts.length == 0 || lookup(to) != NOT_FOUND)
+                throw new Exception("ERROR: '" + to + "' already exists");
+            int newParent = parentOf(parts);
+
+            // a directory can't move under itself
+            for (int p = newParent; p != ROOT; p = inodeTable[p].getParent())
+                if (p == slot)
+                    throw new Exception("ERROR: cannot move '" + from + "' into itself");
+
+            FEntry e = inodeTable[slot];
+            childrenOf(e.getParent()).remove(e.getFilename());
+            e.setFilename(parts[parts.length - 1]);
+            e.setParent((short) newParent);
+            childrenOf(newParent).put(e.getFilename(), slot);
+
+            // every path below a moved directory changes too
+            pathCache.clear();
+
+            writeEntry(slot);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    private int addEntry(int parent, String name, boolean directory) throws Exception {
+        int freeSlot = -1;
+        for (int i = 0; i < MAXFILES; i++) {
+            if (inodeTable[i] == null || inodeTable[i].getFilename().isEmpty()) {
+                freeSlot = i;
+                break;
+            }
+        }
+
+        if (freeSlot == -1) throw new Exception("ERROR: no free file slots available");
+
+    // Create new FEntry
+        FEntry newEntry = new FEntry(name, (short)0, (short)-1);
+        newEntry.setParent((short) parent);
+        newEntry.setDirectory(directory);
+        newEntry.setVersion(bumpVersion());
+        inodeTable[freeSlot] = newEntry;
+        childrenOf(parent).put(name, freeSlot);
+
+    // Write to disk
+        writeEntry(freeSlot);
+        return freeSlot;
+    }
+
+    private void removeEntry(int slot) throws Exception {
+        FEntry e = inodeTable[slot];
+        childrenOf(e.getParent()).remove(e.getFilename());
+        pathCache.values().removeIf(v -> v == slot);
+        streams.remove(slot);
+
+        inodeTable[slot] = new FEntry("", (short)0, (short)-1);
+        writeEntry(slot);
+    }
+
+    private TreeMap<String, Integer> childrenOf(int dir) {
+        return children.computeIfAbsent(dir, k -> new TreeMap<>());
+    }
+
+    // "a/b/c" -> [a, b, c], leading and trailing slashes are ignored
+    private static String[] splitPath(String path) {
+        if (path == null)
+            throw new IllegalArgumentException("ERROR: missing filename");
+        int start = 0, end = path.length();
+        while (start < end && path.charAt(start) == '/') start++;
+        while (end > start && path.charAt(end - 1) == '/') end--;
+        if (start == end) return new String[0];
+
+        String[] parts = path.substring(start, end).split("/");
+        for (String part : parts) {
+            if (part.isEmpty())
+                throw new IllegalArgumentException("ERROR: invalid path '" + path + "'");
+            if (part.length() > 11)
+                throw new IllegalArgumentException("ERROR: filename too long");
+        }
+        return parts;
+    }
+
+    // slot for a path, ROOT for the root or NOT_FOUND
+    private int lookup(String path) {
+        String[] parts = splitPath(path);
+        if (parts.length == 0) return ROOT;
+
+        String key = String.join("/", parts);
+        Integer cached = pathCache.get(key);
+        if (cached != null) return cached;
+
+        int curr = ROOT;
+        for (String part : parts) {
+            if (curr != ROOT && !inodeTable[curr].isDirectory()) return NOT_FOUND;
+            TreeMap<String, Integer> kids = children.get(curr);
+            Integer next = kids == null ? null : kids.get(part);
+            if (next == null) return NOT_FOUND;
+            curr = next;
+        }
+        pathCache.put(key, curr);
+        return curr;
+    }
+
+    // directory that will hold the last component of the path
+    private int parentOf(String[] parts) throws Exception {
+        int dir = ROOT;
+        for (int i = 0; i < parts.length - 1; i++) {
+            TreeMap<String, Integer> kids = children.get(dir);
+            Integer next = kids == null ? null : kids.get(parts[i]);
+            if (next == null || !inodeTable[next].isDirectory())
+                throw new Exception("ERROR: directory '" + String.join("/", Arrays.copyOf(parts, i + 1)) + "' does not exist");
+            dir = next;
+        }
+        return dir;
+    }
+
+    // entry with its codec info and inline record, always written together
+    private void writeEntry(int slot) throws Exception {
+        FEntry e = inodeTable[slot];
+        disk.seek(FENTRIES_START + slot * FENTRY_SIZE);
+        disk.write(e.toBytes());
+        disk.seek(CODEC_INFO_START + slot * CODEC_INFO_SIZE);
+        disk.write(e.codecInfoToBytes());
+        writeInline(slot);
+        writeTreeInfo(slot);
+        writeVersionInfo(slot);
+    }
+
+    // a new version, on disk as used before anyone sees it
+    private long bumpVersion() throws Exception {
+        long v = nextVersion++;
+        writeVolumeInfo();
+        return v;
+    }
+
+    private void writeVolumeInfo() throws Exception {
+        disk.seek(VOLUME_INFO_START);
+        disk.writeLong(nextVersion);
+    }
+
+    private void writeBlockCrc(int b) throws Exception {
+        disk.seek(BLOCK_CRC_START + b * BLOCK_CRC_SIZE);
+        disk.writeInt(blockCrc[b]);
+    }
+
+    private void writeVersionInfo(int slot) throws Exception {
+        disk.seek(VERSION_INFO_START + slot * VERSION_INFO_SIZE);
+        disk.write(inodeTable[slot].versionInfoToBytes());
+    }
+
+    private void writeTreeInfo(int slot) throws Exception {
+        disk.seek(TREE_INFO_START + slot * TREE_INFO_SIZE);
+        disk.write(inodeTable[slot].treeInfoToBytes());
+    }
+
+    private void writeInline(int slot) throws Exception {
+        disk.seek(INLINE_START + slot * INLINE_SIZE);
+        disk.write(inodeTable[slot].inlineToBytes());
+    }
+
+     // find file by path, -1 when there is no such file
+    private int findSlotForFile(String name) throws Exception {
+        int slot = lookup(name);
+        if (slot < 0) return -1;
+        if (inodeTable[slot].isDirectory())
+            throw new Exception("ERROR: '" + name + "' is a directory");
+        return slot;
+    }
+
+    // get a free node holding the given chunk, sharing a data block when dedup finds one
+    private int grabFreeBlock(byte[] buff) throws Exception {
         for (int i = 0; i < MAXBLOCKS; i++) {
             if (freeBlockList[i]) {
+                int data = storeBlock(buff, i);
                 freeBlockList[i] = false;
+                blockRefs[data]++;
 
                 // update node in memory
-                FNode n = new FNode(i);
+                FNode n = new FNode(data);
                 n.setNext(-1);
                 fNodes[i] = n;
 
@@ -182,10 +782,78 @@ public class FileSystemManager {
         throw new Exception("no more blocks");
     }
 
-    // put block back in free list
+    // find or write a data block with this content, preferring the node's own block
+    private int storeBlock(byte[] buff, int preferred) throws Exception {
+        logicalBlockWrites++;
+        long h = 0;
+        if (dedupEnabled) {
+            h = hashBlock(buff);
+            Integer existing = blockByHash.get(h);
+            if (existing != null && sameContent(existing, buff)) {
+                blockWritesSaved++;
+                return existing;
+            }
+        }
+
+        int data = blockRefs[preferred] == 0 ? preferred : -1;
+        for (int b = 0; data == -1 && b < MAXBLOCKS; b++)
+            if (blockRefs[b] == 0) data = b;
+        if (data == -1) throw new Exception("no more blocks");
+
+        // old content is about to be overwritten
+        if (blockHashed[data]) {
+            blockByHash.remove(blockHash[data], data);
+            blockHashed[data] = false;
+        }
+
+        disk.seek(DATA_START_OFFSET + data * BLOCK_SIZE);
+        disk.write(buff);
+        blockCache.remove(data);
+        blockCrc[data] = checksum(buff);
+        writeBlockCrc(data);
+        corruptBlocks.remove(data);
+
+        if (dedupEnabled) {
+            blockByHash.put(h, data);
+            blockHash[data] = h;
+            blockHashed[data] = true;
+        }
+        return data;
+    }
+
+    private void indexBlock(int b, byte[] buff) {
+        long h = hashBlock(buff);
+        blockByHash.put(h, b);
+        blockHash[b] = h;
+        blockHashed[b] = true;
+    }
+
+    // a hash hit is only a candidate, compare the bytes before sharing
+    private boolean sameContent(int b, byte[] buff) throws Exception {
+        byte[] onDisk = new byte[BLOCK_SIZE];
+        disk.seek(DATA_START_OFFSET + b * BLOCK_SIZE);
+        disk.readFully(onDisk);
+        return Arrays.equals(onDisk, buff);
+    }
+
+    // 64 bit FNV-1a, cheap and good enough to pick candidates
+    private static long hashBlock(byte[] buff) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : buff) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // put node back in free list and drop its reference on the data block
     private void giveBackBlock(int idx) throws Exception {
         if (idx < 0 || idx >= MAXBLOCKS) return;
 
+        int data = fNodes[idx].getBlockIndex();
+        if (data >= 0 && blockRefs[data] > 0)
+            blockRefs[data]--;
+
         freeBlockList[idx] = true;
         FNode n = new FNode(-(idx + 1));
         n.setNext(-1);
@@ -206,6 +874,13 @@ public class FileSystemManager {
 
     // write new content 
     public void writeFile(String name, byte[] data) throws Exception {
+        writeFile(name, data, compression);
+    }
+
+    // write new content with a specific codec, falls back to raw if it doesn't shrink
+    public void writeFile(String name, byte[] data, Codec codec) throws Exception {
+        if (data != null && data.length > MAX_FILE_SIZE)
+            throw new Exception("ERROR: file too large (" + data.length + " bytes, at most " + MAX_FILE_SIZE + ")");
         rwLock.writeLock().lock();
         try {
             int slot = findSlotForFile(name);
@@ -216,61 +891,241 @@ public class FileSystemManager {
             }
 
             FEntry entry = inodeTable[slot];
+            boolean wasInline = entry.isInline();
 
-            if (entry.getFirstBlock() >= 0)
-                dropBlockChain(entry.getFirstBlock());
+            // same bytes as stored: nothing to write and the version stays
+            int crc = checksum(data);
+            int length = data == null ? 0 : data.length;
+            if (entry.getFilesize() == length && entry.getChecksum() == crc && sameAsStored(entry, data)) {
+                writesSkipped++;
+                return;
+            }
+            boolean inline = inlineEnabled && data != null && data.length > 0 && data.length <= FEntry.INLINE_MAX;
+            byte[] stored = data;
+            if (!inline && length > 0 && codec != Codec.NONE) {
+                byte[] packed = codec.compress(data);
+                if (packed.length < data.length) stored = packed;
+                else codec = Codec.NONE;
+            }
+            // snapshots pin blocks, so running out is normal: fail before the file is touched
+            if (!inline && length > 0 && !fits(entry, stored))
+                throw new Exception("ERROR: no more blocks");
+
+            long oldVersion = entry.getVersion();
+            int oldChecksum = entry.getChecksum();
+            entry.setVersion(bumpVersion());
+            entry.setChecksum(crc);
+            streams.remove(slot);
+            try {
+                writeContent(slot, entry, wasInline, inline, data, stored, codec);
+            } catch (Exception e) {
+                entry.setVersion(oldVersion);
+                entry.setChecksum(oldChecksum);
+                throw e;
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
 
-            // handle null data
-            if (data == null || data.length == 0) {
-                entry.setFilesize((short)0);
-                entry.setFirstBlock((short)-1);
+    // the new contents replace the old chain, caller holds the write lock and has checked they fit
+    private void writeContent(int slot, FEntry entry, boolean wasInline, boolean inline,
+                              byte[] data, byte[] stored, Codec codec) throws Exception {
+        if (entry.getFirstBlock() >= 0)
+            dropBlockChain(entry.getFirstBlock());
 
-                disk.seek(FENTRIES_START + slot * FENTRY_SIZE);
-                disk.write(entry.toBytes());
-                return;
+        // small file, the inline record is all that changes once it's inline
+        if (inline) {
+            entry.setInlineData(data.clone());
+            entry.setFilesize((short)data.length);
+            entry.setFirstBlock((short)-1);
+            entry.setCodec(Codec.NONE.getId());
+            entry.setStoredSize((short)data.length);
+
+            if (wasInline) {
+                writeInline(slot);
+                writeVersionInfo(slot);
+            } else {
+                writeEntry(slot);
             }
+            return;
+        }
+        entry.setInlineData(null);
 
-            int left = data.length;
-            int pos = 0;
-            int first = -1;
-            int prev = -1;
+        // handle null data
+        if (data == null || data.length == 0) {
+            entry.setFilesize((short)0);
+            entry.setFirstBlock((short)-1);
+            entry.setCodec(Codec.NONE.getId());
+            entry.setStoredSize((short)0);
 
-            while (left > 0) {
-                int blk = grabFreeBlock();
-                if (first == -1) first = blk;
+            writeEntry(slot);
+            return;
+        }
 
-                if (prev != -1) {
-                    fNodes[prev].setNext(blk);
-                    disk.seek(FNODES_START + prev * FNODE_SIZE);
-                    disk.write(fNodes[prev].toBytes());
-                }
+        int left = stored.length;
+        int pos = 0;
+        int first = -1;
+        int prev = -1;
 
-                int chunk = Math.min(left, BLOCK_SIZE);
-                byte[] buff = new byte[BLOCK_SIZE];
-                System.arraycopy(data, pos, buff, 0, chunk);
+        while (left > 0) {
+            int chunk = Math.min(left, BLOCK_SIZE);
+            byte[] buff = new byte[BLOCK_SIZE];
+            System.arraycopy(stored, pos, buff, 0, chunk);
 
-                disk.seek(DATA_START_OFFSET + blk * BLOCK_SIZE);
-                disk.write(buff);
+            int blk = grabFreeBlock(buff);
+            if (first == -1) first = blk;
 
-                left -= chunk;
-                pos += chunk;
-                prev = blk;
+            if (prev != -1) {
+                fNodes[prev].setNext(blk);
+                disk.seek(FNODES_START + prev * FNODE_SIZE);
+                disk.write(fNodes[prev].toBytes());
             }
 
-            entry.setFirstBlock((short)first);
-            entry.setFilesize((short)data.length);
+            left -= chunk;
+            pos += chunk;
+            prev = blk;
+        }
 
-            disk.seek(FENTRIES_START + slot * FENTRY_SIZE);
-            disk.write(entry.toBytes());
+        entry.setFirstBlock((short)first);
+        entry.setFilesize((short)data.length);
+        entry.setCodec(codec.getId());
+        entry.setStoredSize((short)stored.length);
 
-        } finally {
-            rwLock.writeLock().unlock();
+        writeEntry(slot);
+    }
+
+    // whether stored has room once the entry's own chain is dropped. a dedup hit on a
+    // block something else still uses costs nothing, every other chunk needs a node
+    // and a data block nobody references
+    private boolean fits(FEntry entry, byte[] stored) throws Exception {
+        int[] refs = blockRefs.clone();
+        int nodes = 0;
+        for (int i = 0; i < MAXBLOCKS; i++)
+            if (freeBlockList[i]) nodes++;
+        for (int blk = entry.getFirstBlock(); blk >= 0; blk = fNodes[blk].getNext()) {
+            nodes++;
+            refs[fNodes[blk].getBlockIndex()]--;
+        }
+        if ((stored.length + BLOCK_SIZE - 1) / BLOCK_SIZE > nodes) return false;
+
+        int free = 0;
+        for (int b = 0; b < MAXBLOCKS; b++)
+            if (refs[b] == 0) free++;
+        Set<Long> written = new HashSet<>();
+        for (int pos = 0; pos < stored.length; pos += BLOCK_SIZE) {
+            if (dedupEnabled) {
+                byte[] buff = new byte[BLOCK_SIZE];
+                System.arraycopy(stored, pos, buff, 0, Math.min(BLOCK_SIZE, stored.length - pos));
+                long h = hashBlock(buff);
+                Integer existing = blockByHash.get(h);
+                if (existing != null && refs[existing] > 0 && sameContent(existing, buff)) continue;
+                if (!written.add(h)) continue;
+            }
+            if (--free < 0) return false;
         }
+        return true;
     }
 
     // load all bytes of a file
     public byte[] readFile(String name) throws Exception {
         rwLock.readLock().lock();
+        try {
+            int slot = findSlotForFile(name);
+            if (slot == -1)
+                throw new IllegalArgumentException("ERROR: file '" + name + "' does not exist");
+
+            return readContent(inodeTable[slot]);
+
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    // a file's contents, caller holds a lock
+    private byte[] readContent(FEntry entry) throws Exception {
+        // inline files never touch the disk
+        if (entry.isInline())
+            return entry.getInlineData().clone();
+
+        int size = entry.getStoredSize();
+
+        if (size <= 0 || entry.getFirstBlock() < 0)
+            return new byte[0];
+
+        // whole blocks so each can be checked
+        int[] blocks = blockList(entry);
+        byte[] out = new byte[blocks.length * BLOCK_SIZE];
+        readBlocks(blocks, out);
+        return Codec.fromId(entry.getCodec()).decompress(Arrays.copyOf(out, size), entry.getFilesize());
+    }
+
+    // a stored copy that fails its block checksums is never the same, rewriting it repairs it
+    private boolean sameAsStored(FEntry entry, byte[] data) throws Exception {
+        try {
+            return Arrays.equals(readContent(entry), data == null ? new byte[0] : data);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        if (data != null) crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    public FileStat stat(String name) throws Exception {
+        rwLock.readLock().lock();
+        try {
+            FEntry e = inodeTable[existingFile(name)];
+            return new FileStat(e.getFilesize(), e.getVersion(), e.getChecksum(), null);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    // an unchanged file is answered from the entry table alone
+    public FileStat readFileIfChanged(String name, long knownVersion) throws Exception {
+        rwLock.readLock().lock();
+        try {
+            FEntry e = inodeTable[existingFile(name)];
+            byte[] data = e.getVersion() == knownVersion ? null : readContent(e);
+            return new FileStat(e.getFilesize(), e.getVersion(), e.getChecksum(), data);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    public long writeFileIfMatch(String name, long expectedVersion, byte[] data) throws Exception {
+        rwLock.writeLock().lock();
+        try {
+            int slot = findSlotForFile(name);
+            long current = slot == -1 ? 0 : inodeTable[slot].getVersion();
+            if (current != expectedVersion)
+                throw new Exception("ERROR: version mismatch, '" + name + "' is at version " + current);
+            writeFile(name, data);
+            return inodeTable[findSlotForFile(name)].getVersion();
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    private int existingFile(String name) throws Exception {
+        int slot = findSlotForFile(name);
+        if (slot == -1)
+            throw new IllegalArgumentException("ERROR: file '" + name + "' does not exist");
+        return slot;
+    }
+
+    // length bytes from offset, shorter at the end of the file. a read that picks up
+    // where the previous one on the file stopped is treated as a stream and the
+    // next blocks are read along with it, in a window that doubles up to MAX_READAHEAD
+    @Override
+    public byte[] readFile(String name, int offset, int length) throws Exception {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("ERROR: invalid range");
+        rwLock.readLock().lock();
         try {
             int slot = findSlotForFile(name);
             if (slot == -1)
@@ -278,34 +1133,168 @@ public class FileSystemManager {
 
             FEntry entry = inodeTable[slot];
             int size = entry.getFilesize();
+            int end = (int) Math.min(size, (long) offset + length);
+            if (offset >= end) return new byte[0];
+
+            if (entry.isInline())
+                return Arrays.copyOfRange(entry.getInlineData(), offset, end);
+            // compressed files only come apart as a whole
+            if (entry.getCodec() != Codec.NONE.getId())
+                return Arrays.copyOfRange(readFile(name), offset, end);
+
+            int[] blocks = blockList(entry);
+            int first = offset / BLOCK_SIZE;
+            int last = (end - 1) / BLOCK_SIZE;
+            int stop = Math.min(blocks.length, last + 1 + readahead(slot, offset, end));
+            // still ahead of the reader from last time, wait until it catches up
+            if (stop > last + 1 && blockCache.containsKey(blocks[last + 1]))
+                stop = last + 1;
+
+            byte[] span = new byte[(stop - first) * BLOCK_SIZE];
+            readBlocks(Arrays.copyOfRange(blocks, first, stop), span);
+
+            // keep the block the next read starts in and everything read ahead
+            for (int i = end / BLOCK_SIZE; i < stop; i++) {
+                int at = (i - first) * BLOCK_SIZE;
+                blockCache.put(blocks[i], Arrays.copyOfRange(span, at, at + BLOCK_SIZE));
+            }
+            return Arrays.copyOfRange(span, offset - first * BLOCK_SIZE, end - first * BLOCK_SIZE);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
 
-            if (size <= 0 || entry.getFirstBlock() < 0)
-                return new byte[0];
+    // blocks to read past the requested range
+    private int readahead(int slot, int offset, int end) {
+        ReadStream s = streams.computeIfAbsent(slot, k -> new ReadStream());
+        synchronized (s) {
+            if (offset == 0) s.window = 1;
+            else if (offset == s.next) s.window = Math.min(MAX_READAHEAD, Math.max(1, s.window * 2));
+            else s.window = 0;
+            s.next = end;
+            return s.window;
+        }
+    }
+
+    private static final class ReadStream {
+        int next;
+        int window;
+    }
 
-            byte[] out = new byte[size];
-            int copied = 0;
-            int blk = entry.getFirstBlock();
+    // data blocks of a file in order, walked from the node table without touching the disk
+    private int[] blockList(FEntry entry) {
+        int count = (entry.getStoredSize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] blocks = new int[count];
+        int n = 0;
+        for (int blk = entry.getFirstBlock(); blk >= 0 && n < count; blk = fNodes[blk].getNext())
+            blocks[n++] = fNodes[blk].getBlockIndex();
+        return n == count ? blocks : Arrays.copyOf(blocks, n);
+    }
 
-            // follow the linked list of blocks
-            while (blk >= 0 && copied < size) {
-                disk.seek(DATA_START_OFFSET + blk * BLOCK_SIZE);
-                byte[] buff = new byte[BLOCK_SIZE];
-                disk.readFully(buff);
+    // fill out, one block per entry, from the given data blocks. cached blocks are
+    // copied, runs of blocks that sit next to each other on disk go out as a single
+    // read and every block read is checked against its checksum
+    private void readBlocks(int[] blocks, byte[] out) throws IOException {
+        int i = 0;
+        while (i < blocks.length) {
+            int pos = i * BLOCK_SIZE;
+            byte[] cached = blockCache.get(blocks[i]);
+            if (cached != null) {
+                System.arraycopy(cached, 0, out, pos, BLOCK_SIZE);
+                cacheHits.increment();
+                i++;
+                continue;
+            }
+
+            int j = i + 1;
+            while (j < blocks.length && blocks[j] == blocks[j - 1] + 1 && !blockCache.containsKey(blocks[j]))
+                j++;
+            readAt(ByteBuffer.wrap(out, pos, (j - i) * BLOCK_SIZE), DATA_START_OFFSET + (long) blocks[i] * BLOCK_SIZE);
+            if (verifyChecksums)
+                for (int k = i; k < j; k++) verifyBlock(blocks[k], out, k * BLOCK_SIZE);
+            i = j;
+        }
+    }
 
-                int part = Math.min(size - copied, BLOCK_SIZE);
-                System.arraycopy(buff, 0, out, copied, part);
-                copied += part;
+    private void verifyBlock(int b, byte[] buff, int off) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(buff, off, BLOCK_SIZE);
+        if ((int) crc.getValue() == blockCrc[b]) return;
 
-                blk = fNodes[blk].getNext();
+        checksumErrors.increment();
+        if (corruptBlocks.add(b))
+            System.err.println("Data block " + b + " failed its checksum");
+        throw new IOException("ERROR: data block " + b + " is corrupt");
+    }
+
+    // check one data block against its checksum, free blocks always pass.
+    // false when it is corrupt, it is then reported in getCorruptBlocks
+    public boolean scrubBlock(int b) throws Exception {
+        rwLock.readLock().lock();
+        try {
+            if (blockRefs[b] == 0) return true;
+            byte[] buff = new byte[BLOCK_SIZE];
+            readAt(ByteBuffer.wrap(buff), DATA_START_OFFSET + (long) b * BLOCK_SIZE);
+            scrubbedBlocks.increment();
+            try {
+                verifyBlock(b, buff, 0);
+                return true;
+            } catch (IOException e) {
+                return false;
             }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
 
-            return out;
+    public int getBlockCount() { return MAXBLOCKS; }
 
+    // run at startup, before clients are let in: resolves every path and reads every
+    // data block once, in runs of adjacent blocks, so the first requests after a
+    // restart find the page cache and the block cache hot. corrupt blocks are
+    // reported as on any read and left out. returns the blocks read
+    public int warmUp() throws Exception {
+        rwLock.readLock().lock();
+        try {
+            for (int i = 0; i < MAXFILES; i++)
+                if (!inodeTable[i].getFilename().isEmpty())
+                    pathCache.put(pathOf(i), i);
+
+            int read = 0;
+            int b = 0;
+            while (b < MAXBLOCKS) {
+                if (blockRefs[b] == 0) { b++; continue; }
+                int end = b + 1;
+                while (end < MAXBLOCKS && blockRefs[end] > 0) end++;
+                byte[] span = new byte[(end - b) * BLOCK_SIZE];
+                readAt(ByteBuffer.wrap(span), DATA_START_OFFSET + (long) b * BLOCK_SIZE);
+                for (int k = b; k < end; k++) {
+                    int at = (k - b) * BLOCK_SIZE;
+                    try {
+                        if (verifyChecksums) verifyBlock(k, span, at);
+                        blockCache.put(k, Arrays.copyOfRange(span, at, at + BLOCK_SIZE));
+                    } catch (IOException e) {
+                        // already counted and logged
+                    }
+                }
+                read += end - b;
+                b = end;
+            }
+            return read;
         } finally {
             rwLock.readLock().unlock();
         }
     }
 
+    private void readAt(ByteBuffer buf, long pos) throws IOException {
+        diskReads.increment();
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) throw new EOFException("ERROR: volume is truncated");
+            pos += n;
+        }
+    }
+
     // delete file and its blocks
     public void deleteFile(String name) throws Exception {
         rwLock.writeLock().lock();
@@ -319,18 +1308,209 @@ public class FileSystemManager {
             if (entry.getFirstBlock() >= 0)
                 dropBlockChain(entry.getFirstBlock());
 
-            FEntry empty = new FEntry("", (short)0, (short)-1);
-            inodeTable[slot] = empty;
+            removeEntry(slot);
 
-            disk.seek(FENTRIES_START + slot * FENTRY_SIZE);
-            disk.write(empty.toBytes());
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+    // freeze the current tree under a name. copies the entry table and takes a
+    // reference on the data blocks, no data is copied
+    public void createSnapshot(String name) throws Exception {
+        rwLock.writeLock().lock();
+        try {
+            takeSnapshot(name);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    // the same snapshot of several volumes at one point in time, nothing can
+    // change on any of them until all are taken
+    public static void createSnapshot(List<FileSystemManager> volumes, String name) throws Exception {
+        List<FileSystemManager> locked = new ArrayList<>();
+        try {
+            for (FileSystemManager v : volumes) {
+                v.rwLock.writeLock().lock();
+                locked.add(v);
+            }
+            for (FileSystemManager v : volumes)
+                if (v.snapshots.containsKey(name))
+                    throw new Exception("ERROR: snapshot '" + name + "' already exists");
+            for (FileSystemManager v : volumes) v.takeSnapshot(name);
+        } finally {
+            for (FileSystemManager v : locked) v.rwLock.writeLock().unlock();
+        }
+    }
 
+    public void deleteSnapshot(String name) throws Exception {
+        rwLock.writeLock().lock();
+        try {
+            Snapshot snap = snapshots.remove(name);
+            if (snap == null)
+                throw new Exception("ERROR: snapshot '" + name + "' does not exist");
+            release(snap);
         } finally {
             rwLock.writeLock().unlock();
         }
     }
+
+    public String[] listSnapshots() {
+        rwLock.readLock().lock();
+        try {
+            return snapshots.keySet().toArray(new String[0]);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    // a file as it was when the snapshot was taken
+    public byte[] readSnapshotFile(String snapshot, String path) throws Exception {
+        rwLock.readLock().lock();
+        try {
+            Snapshot snap = snapshot(snapshot);
+            String key = String.join("/", splitPath(path));
+            FEntry e = snap.entries.get(key);
+            if (e == null || e.isDirectory())
+                throw new IllegalArgumentException("ERROR: file '" + path + "' does not exist in snapshot '" + snapshot + "'");
+            return readSnapshotContent(snap, key);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    // names in a directory of a snapshot, directories end with '/'
+    public String[] listSnapshotDirectory(String snapshot, String path) throws Exception {
+        rwLock.readLock().lock();
+        try {
+            Snapshot snap = snapshot(snapshot);
+            String dir = String.join("/", splitPath(path));
+            if (!dir.isEmpty() && (snap.entries.get(dir) == null || !snap.entries.get(dir).isDirectory()))
+                throw new Exception("ERROR: directory '" + path + "' does not exist in snapshot '" + snapshot + "'");
+
+            String prefix = dir.isEmpty() ? "" : dir + "/";
+            List<String> out = new ArrayList<>();
+            for (Map.Entry<String, FEntry> e : snap.entries.tailMap(prefix, true).entrySet()) {
+                if (!e.getKey().startsWith(prefix)) break;
+                String rest = e.getKey().substring(prefix.length());
+                if (rest.isEmpty() || rest.indexOf('/') >= 0) continue;
+                out.add(e.getValue().isDirectory() ? rest + "/" : rest);
+            }
+            return out.toArray(new String[0]);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    // stream a snapshot as "MKDIR <path>" and "WRITE <path> <base64>" lines, parents
+    // first, the same records replication uses. only the lookup takes the lock, the
+    // blocks are pinned by the backup's own reference so writers carry on meanwhile
+    public void backup(String snapshot, OutputStream out) throws Exception {
+        Snapshot snap;
+        rwLock.writeLock().lock();
+        try {
+            snap = snapshot(snapshot);
+            retain(snap);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+
+        try {
+            PrintWriter w = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            for (Map.Entry<String, FEntry> e : snap.entries.entrySet()) {
+                if (e.getValue().isDirectory())
+                    w.println("MKDIR " + e.getKey());
+                else
+                    w.println("WRITE " + e.getKey() + " " + Base64.getEncoder().encodeToString(readSnapshotContent(snap, e.getKey())));
+            }
+            w.flush();
+        } finally {
+            rwLock.writeLock().lock();
+            try {
+                release(snap);
+            } finally {
+                rwLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static final class Snapshot {
+        // full path -> entry as it was, parents sort before their children
+        final TreeMap<String, FEntry> entries = new TreeMap<>();
+        // full path -> data blocks of the file
+        final Map<String, int[]> blocks = new HashMap<>();
+    }
+
+    // caller holds the write lock
+    private void takeSnapshot(String name) throws Exception {
+        if (name == null || !name.matches("[A-Za-z0-9._-]{1,32}"))
+            throw new IllegalArgumentException("ERROR: invalid snapshot name");
+        if (snapshots.containsKey(name))
+            throw new Exception("ERROR: snapshot '" + name + "' already exists");
+
+        Snapshot snap = new Snapshot();
+        for (int i = 0; i < MAXFILES; i++) {
+            FEntry e = inodeTable[i];
+            if (e.getFilename().isEmpty()) continue;
+            String path = pathOf(i);
+            snap.entries.put(path, e.copy());
+            if (!e.isDirectory() && !e.isInline())
+                snap.blocks.put(path, blockList(e));
+        }
+        retain(snap);
+        snapshots.put(name, snap);
+    }
+
+    private String pathOf(int slot) {
+        String path = inodeTable[slot].getFilename();
+        for (int p = inodeTable[slot].getParent(); p != ROOT; p = inodeTable[p].getParent())
+            path = inodeTable[p].getFilename() + "/" + path;
+        return path;
+    }
+
+    private Snapshot snapshot(String name) throws Exception {
+        Snapshot snap = snapshots.get(name);
+        if (snap == null)
+            throw new Exception("ERROR: snapshot '" + name + "' does not exist");
+        return snap;
+    }
+
+    // caller holds the write lock
+    private void retain(Snapshot snap) {
+        for (int[] list : snap.blocks.values())
+            for (int b : list) blockRefs[b]++;
+    }
+
+    private void release(Snapshot snap) {
+        for (int[] list : snap.blocks.values())
+            for (int b : list) blockRefs[b]--;
+    }
+
+    // no lock needed, a referenced block is never rewritten
+    private byte[] readSnapshotContent(Snapshot snap, String path) throws Exception {
+        FEntry e = snap.entries.get(path);
+        if (e.isInline()) return e.getInlineData().clone();
+        int[] blocks = snap.blocks.get(path);
+        if (blocks == null || blocks.length == 0) return new byte[0];
+
+        byte[] out = new byte[blocks.length * BLOCK_SIZE];
+        readBlocks(blocks, out);
+        return Codec.fromId(e.getCodec()).decompress(Arrays.copyOf(out, e.getStoredSize()), e.getFilesize());
+    }
+
     // for ServerRestartPersistence test
+    // everything written goes to the device before the lock is let go, so the
+    // next process to open the volume sees all of it
     public void close() {
+        rwLock.writeLock().lock();
+        try {
+            if (channel != null && channel.isOpen()) channel.force(true);
+            if (volumeLock != null && volumeLock.isValid()) volumeLock.release();
+        } catch (Exception e) {
+            System.err.println("Could not sync volume: " + e.getMessage());
+        } finally {
+            rwLock.writeLock().unlock();
+        }
         try {
             if (disk != null) disk.close();
         } catch (Exception ignored) {}
@@ -0,0 +1,188 @@
+package ca.concordia.filesystem;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// spreads files over several independent volumes, each with its own backing
+// file and lock. the top level name picks the volume on a consistent hash ring,
+// so a directory and everything under it stay on one volume
+public class ShardedFileSystemManager implements FileStore {
+
+    // points per volume on the ring, evens out the split
+    private static final int VNODES = 64;
+
+    private final FileSystemManager[] shards;
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+
+    public ShardedFileSystemManager(String[] filenames, int totalSize) {
+        this(filenames, totalSize, 0);
+    }
+
+    // lockWaitMs per volume, see FileSystemManager
+    public ShardedFileSystemManager(String[] filenames, int totalSize, long lockWaitMs) {
+        if (filenames.length == 0)
+            throw new IllegalArgumentException("need at least one volume");
+        shards = new FileSystemManager[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            try {
+                shards[i] = new FileSystemManager(filenames[i], totalSize, lockWaitMs);
+            } catch (RuntimeException e) {
+                // don't keep the ones already open locked
+                for (int j = 0; j < i; j++) shards[j].close();
+                throw e;
+            }
+            // keyed on the position, not the path, so volumes can be moved to other disks
+            for (int v = 0; v < VNODES; v++)
+                ring.put(hash("volume-" + i + "#" + v), i);
+        }
+    }
+
+    public List<FileSystemManager> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    @Override
+    public void createFile(String name) throws Exception {
+        shardFor(name).createFile(name);
+    }
+
+    @Override
+    public void writeFile(String name, byte[] data) throws Exception {
+        shardFor(name).writeFile(name, data);
+    }
+
+    @Override
+    public byte[] readFile(String name) throws Exception {
+        return shardFor(name).readFile(name);
+    }
+
+    @Override
+    public byte[] readFile(String name, int offset, int length) throws Exception {
+        return shardFor(name).readFile(name, offset, length);
+    }
+
+    @Override
+    public void deleteFile(String name) throws Exception {
+        shardFor(name).deleteFile(name);
+    }
+
+    @Override
+    public FileStat stat(String name) throws Exception {
+        return shardFor(name).stat(name);
+    }
+
+    @Override
+    public FileStat readFileIfChanged(String name, long knownVersion) throws Exception {
+        return shardFor(name).readFileIfChanged(name, knownVersion);
+    }
+
+    @Override
+    public long writeFileIfMatch(String name, long expectedVersion, byte[] data) throws Exception {
+        return shardFor(name).writeFileIfMatch(name, expectedVersion, data);
+    }
+
+    @Override
+    public String[] listFiles() {
+        List<String> all = new ArrayList<>();
+        for (FileSystemManager shard : shards)
+            all.addAll(Arrays.asList(shard.listFiles()));
+        all.sort(BY_NAME);
+        return all.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        if (!isRoot(path))
+            return shardFor(path).listDirectory(path, after, limit);
+
+        // every volume has part of the root, take a page from each and merge
+        List<String> merged = new ArrayList<>();
+        for (FileSystemManager shard : shards)
+            merged.addAll(Arrays.asList(shard.listDirectory(path, after, limit)));
+        merged.sort(BY_NAME);
+        if (merged.size() > limit)
+            merged = merged.subList(0, limit);
+        return merged.toArray(new String[0]);
+    }
+
+    @Override
+    public void createDirectory(String path) throws Exception {
+        shardFor(path).createDirectory(path);
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws Exception {
+        shardFor(path).deleteDirectory(path);
+    }
+
+    @Override
+    public void rename(String from, String to) throws Exception {
+        FileSystemManager src = shardFor(from);
+        FileSystemManager dst = shardFor(to);
+        if (src == dst) {
+            src.rename(from, to);
+            return;
+        }
+
+        // different volumes: copy then delete, which only works for plain files
+        byte[] data = src.readFile(from);
+        if (exists(dst, to))
+            throw new Exception("ERROR: '" + to + "' already exists");
+        dst.writeFile(to, data);
+        src.deleteFile(from);
+    }
+
+    public void close() {
+        for (FileSystemManager shard : shards) shard.close();
+    }
+
+    private FileSystemManager shardFor(String path) {
+        Map.Entry<Integer, Integer> e = ring.ceilingEntry(hash(topLevel(path)));
+        if (e == null) e = ring.firstEntry();
+        return shards[e.getValue()];
+    }
+
+    private static boolean exists(FileSystemManager shard, String path) {
+        try {
+            shard.readFile(path);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static boolean isRoot(String path) {
+        return path == null || path.replace("/", "").isEmpty();
+    }
+
+    // the name under the root a path starts with, it picks the volume
+    public static String topLevel(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') start++;
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.substring(start) : path.substring(start, end);
+    }
+
+    // directories carry a trailing '/', cursors don't
+    private static final Comparator<String> BY_NAME = Comparator.comparing(
+            n -> n.endsWith("/") ? n.substring(0, n.length() - 1) : n);
+
+    // 32 bit FNV-1a with a final mix so neighbouring names spread out
+    private static int hash(String key) {
+        int h = 0x811c9dc5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
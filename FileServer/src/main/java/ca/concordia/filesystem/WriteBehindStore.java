@@ -0,0 +1,252 @@
+package ca.concordia.filesystem;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// acknowledges writes once they are in memory and persists them later.
+// repeated writes to a file before a flush collapse into the last one, a
+// background thread flushes at least every maxStalenessMs and writers flush
+// themselves when more than maxBufferedBytes are waiting.
+// reads see buffered data. writeFileSync and flush are the durable paths
+public class WriteBehindStore implements FileStore {
+
+    private final FileStore delegate;
+    private final long maxStalenessMs;
+    private final long maxBufferedBytes;
+
+    // file -> latest unflushed contents, guarded by this
+    private final Map<String, byte[]> pending = new LinkedHashMap<>();
+    private long bufferedBytes = 0;
+    // held while anything is written to the delegate, keeps an old buffered
+    // copy from landing on top of a newer sync write, delete or rename
+    private final Object flushLock = new Object();
+
+    private long coalescedWrites = 0;
+    private long flushedWrites = 0;
+    private long flushErrors = 0;
+    private volatile boolean running = true;
+    private final Thread flusher;
+
+    public WriteBehindStore(FileStore delegate, long maxStalenessMs, long maxBufferedBytes) {
+        this.delegate = delegate;
+        this.maxStalenessMs = maxStalenessMs;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.flusher = new Thread(this::flushLoop, "write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void createFile(String name) throws Exception {
+        delegate.createFile(name);
+    }
+
+    @Override
+    public void writeFile(String name, byte[] data) throws Exception {
+        // refused now, a flush can't report it to anyone
+        if (data != null && data.length > FileSystemManager.MAX_FILE_SIZE)
+            throw new Exception("ERROR: file too large (" + data.length + " bytes, at most " + FileSystemManager.MAX_FILE_SIZE + ")");
+        byte[] copy = data == null ? new byte[0] : data.clone();
+        boolean buffered;
+        synchronized (this) {
+            buffered = pending.containsKey(name);
+        }
+        // the entry is created right away so bad names and full tables fail now, not at
+        // flush time. outside the monitor, reads shouldn't wait on the disk (or a replica's ACK)
+        if (!buffered)
+            delegate.createFile(name);
+
+        boolean full;
+        synchronized (this) {
+            byte[] old = pending.put(name, copy);
+            if (old != null) {
+                coalescedWrites++;
+                bufferedBytes -= old.length;
+            }
+            bufferedBytes += copy.length;
+            full = bufferedBytes > maxBufferedBytes;
+        }
+        // over the memory cap, the writer pays for the flush
+        if (full) flush();
+    }
+
+    @Override
+    public void writeFileSync(String name, byte[] data) throws Exception {
+        synchronized (flushLock) {
+            synchronized (this) {
+                dropPending(name);
+            }
+            delegate.writeFileSync(name, data);
+        }
+    }
+
+    @Override
+    public byte[] readFile(String name) throws Exception {
+        synchronized (this) {
+            byte[] buffered = pending.get(name);
+            if (buffered != null) return buffered.clone();
+        }
+        return delegate.readFile(name);
+    }
+
+    @Override
+    public byte[] readFile(String name, int offset, int length) throws Exception {
+        synchronized (this) {
+            // buffered data is already in memory, slicing it is all the default does
+            if (pending.containsKey(name)) return FileStore.super.readFile(name, offset, length);
+        }
+        return delegate.readFile(name, offset, length);
+    }
+
+    // versions only exist on disk, the file's buffered write goes out first
+    @Override
+    public FileStat stat(String name) throws Exception {
+        synchronized (flushLock) {
+            flushFile(name);
+            return delegate.stat(name);
+        }
+    }
+
+    @Override
+    public FileStat readFileIfChanged(String name, long knownVersion) throws Exception {
+        synchronized (flushLock) {
+            flushFile(name);
+            return delegate.readFileIfChanged(name, knownVersion);
+        }
+    }
+
+    @Override
+    public long writeFileIfMatch(String name, long expectedVersion, byte[] data) throws Exception {
+        synchronized (flushLock) {
+            flushFile(name);
+            return delegate.writeFileIfMatch(name, expectedVersion, data);
+        }
+    }
+
+    @Override
+    public void deleteFile(String name) throws Exception {
+        synchronized (flushLock) {
+            synchronized (this) {
+                dropPending(name);
+            }
+            delegate.deleteFile(name);
+        }
+    }
+
+    @Override
+    public String[] listFiles() {
+        return delegate.listFiles();
+    }
+
+    @Override
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        return delegate.listDirectory(path, after, limit);
+    }
+
+    @Override
+    public void createDirectory(String path) throws Exception {
+        delegate.createDirectory(path);
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws Exception {
+        delegate.deleteDirectory(path);
+    }
+
+    // buffered paths would point at the old name, write everything out first
+    @Override
+    public void rename(String from, String to) throws Exception {
+        synchronized (flushLock) {
+            flushPending();
+            delegate.rename(from, to);
+        }
+    }
+
+    @Override
+    public void flush() throws Exception {
+        synchronized (flushLock) {
+            flushPending();
+        }
+        delegate.flush();
+    }
+
+    // stop the flusher and write out what's left
+    public void close() throws Exception {
+        running = false;
+        flusher.interrupt();
+        flush();
+    }
+
+    public synchronized int getBufferedFiles() { return pending.size(); }
+
+    public synchronized long getBufferedBytes() { return bufferedBytes; }
+
+    // writes that replaced a buffered one and never hit the disk
+    public synchronized long getCoalescedWrites() { return coalescedWrites; }
+
+    public synchronized long getFlushedWrites() { return flushedWrites; }
+
+    public synchronized long getFlushErrors() { return flushErrors; }
+
+    // caller holds flushLock
+    private void flushPending() {
+        List<Map.Entry<String, byte[]>> batch = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, byte[]> e : pending.entrySet())
+                batch.add(Map.entry(e.getKey(), e.getValue()));
+        }
+
+        for (Map.Entry<String, byte[]> e : batch) {
+            boolean ok = true;
+            try {
+                delegate.writeFile(e.getKey(), e.getValue());
+            } catch (Exception ex) {
+                // it was already acknowledged, nothing to do but report it
+                ok = false;
+                System.err.println("Write-behind lost '" + e.getKey() + "': " + ex.getMessage());
+            }
+            synchronized (this) {
+                if (ok) flushedWrites++;
+                else flushErrors++;
+                // stays buffered if a newer write came in meanwhile
+                if (pending.get(e.getKey()) == e.getValue())
+                    dropPending(e.getKey());
+            }
+        }
+    }
+
+    // caller holds flushLock, unlike a background flush a failure goes to the caller
+    private void flushFile(String name) throws Exception {
+        byte[] data;
+        synchronized (this) {
+            data = pending.get(name);
+        }
+        if (data == null) return;
+        delegate.writeFile(name, data);
+        synchronized (this) {
+            flushedWrites++;
+            if (pending.get(name) == data) dropPending(name);
+        }
+    }
+
+    private void dropPending(String name) {
+        byte[] old = pending.remove(name);
+        if (old != null) bufferedBytes -= old.length;
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                // half the bound, so nothing waits longer than maxStalenessMs
+                Thread.sleep(Math.max(1, maxStalenessMs / 2));
+            } catch (InterruptedException e) {
+                if (!running) return;
+            }
+            synchronized (flushLock) {
+                flushPending();
+            }
+        }
+    }
+}
@@ -4,9 +4,23 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class FEntry {
+    // files up to this size live in the entry's inline record instead of blocks
+    public static final int INLINE_MAX = 32;
+
     private String filename;
     private short filesize;
     private short firstBlock;
+    // how the blocks hold the data, see Codec, and how many bytes they hold
+    private byte codec;
+    private short storedSize;
+    // contents of an inline file, null when the file uses blocks
+    private byte[] inlineData;
+    // slot of the containing directory, -1 for the root
+    private short parent;
+    private boolean directory;
+    // bumped on every change of the contents, and a CRC32C of them
+    private long version;
+    private int checksum;
 
     public FEntry(String filename, short filesize, short firstBlock) throws IllegalArgumentException {
         if (filename.length() > 11) {
@@ -15,6 +29,23 @@ public class FEntry {
         this.filename = filename;
         this.filesize = filesize;
         this.firstBlock = firstBlock;
+        this.codec = 0;
+        this.storedSize = filesize;
+        this.parent = -1;
+        this.directory = false;
+    }
+
+    // detached copy, for snapshots
+    public FEntry copy() {
+        FEntry e = new FEntry(filename, filesize, firstBlock);
+        e.codec = codec;
+        e.storedSize = storedSize;
+        e.inlineData = inlineData == null ? null : inlineData.clone();
+        e.parent = parent;
+        e.directory = directory;
+        e.version = version;
+        e.checksum = checksum;
+        return e;
     }
 
     // Convert FEntry to bytes for disk storage
@@ -53,6 +84,76 @@ public class FEntry {
         return new FEntry(filename, filesize, firstBlock);
     }
 
+    // codec info is kept apart from the 15 byte entry
+    public byte[] codecInfoToBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(3); // 1 + 2 = 3 bytes
+        buffer.put(codec);
+        buffer.putShort(storedSize);
+        return buffer.array();
+    }
+
+    public void codecInfoFromBytes(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        this.codec = buffer.get();
+        this.storedSize = buffer.getShort();
+    }
+
+    // inline record: length (-1 when not inline) then the data, padded
+    public byte[] inlineToBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + INLINE_MAX);
+        if (inlineData == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) inlineData.length);
+            buffer.put(inlineData);
+        }
+        return buffer.array();
+    }
+
+    // the inline record is the source of truth for an inline file's size
+    public void inlineFromBytes(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        short len = buffer.getShort();
+        if (len < 0 || len > INLINE_MAX) {
+            this.inlineData = null;
+            return;
+        }
+        this.inlineData = new byte[len];
+        buffer.get(inlineData);
+        this.filesize = len;
+        this.storedSize = len;
+        this.codec = 0;
+        this.firstBlock = -1;
+    }
+
+    // tree info: parent slot then a type byte, 1 for directories
+    public byte[] treeInfoToBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(3); // 2 + 1 = 3 bytes
+        buffer.putShort(parent);
+        buffer.put((byte) (directory ? 1 : 0));
+        return buffer.array();
+    }
+
+    public void treeInfoFromBytes(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        this.parent = buffer.getShort();
+        this.directory = buffer.get() == 1;
+    }
+
+    // version info: version then checksum
+    public byte[] versionInfoToBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(12); // 8 + 4 = 12 bytes
+        buffer.putLong(version);
+        buffer.putInt(checksum);
+        return buffer.array();
+    }
+
+    public void versionInfoFromBytes(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        this.version = buffer.getLong();
+        this.checksum = buffer.getInt();
+    }
+
     // getters and setters
     public String getFilename() { return filename; }
     public void setFilename(String filename) { 
@@ -65,6 +166,21 @@ public class FEntry {
     public void setFilesize(short filesize) { this.filesize = filesize; }
     public short getFirstBlock() { return firstBlock; }
     public void setFirstBlock(short firstBlock) { this.firstBlock = firstBlock; }
+    public byte getCodec() { return codec; }
+    public void setCodec(byte codec) { this.codec = codec; }
+    public short getStoredSize() { return storedSize; }
+    public void setStoredSize(short storedSize) { this.storedSize = storedSize; }
+    public boolean isInline() { return inlineData != null; }
+    public byte[] getInlineData() { return inlineData; }
+    public void setInlineData(byte[] inlineData) { this.inlineData = inlineData; }
+    public short getParent() { return parent; }
+    public void setParent(short parent) { this.parent = parent; }
+    public boolean isDirectory() { return directory; }
+    public void setDirectory(boolean directory) { this.directory = directory; }
+    public long getVersion() { return version; }
+    public void setVersion(long version) { this.version = version; }
+    public int getChecksum() { return checksum; }
+    public void setChecksum(int checksum) { this.checksum = checksum; }
 
    
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.FileStore;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// replica side: follows a primary's log and applies it to the local volume.
+// reconnects on its own, every new session starts with a full resync
+public class ReplicaClient {
+
+    private static final long RETRY_MS = 1000;
+
+    private final FileStore store;
+    private final String host;
+    private final int port;
+    private volatile boolean connected;
+    private volatile long appliedSeq;
+    private volatile long lastHeard;
+    private volatile boolean stopped;
+    private volatile Socket socket;
+
+    public ReplicaClient(FileStore store, String host, int port) {
+        this.store = store;
+        this.host = host;
+        this.port = port;
+    }
+
+    public void start() {
+        Thread t = new Thread(this::followLoop, "replica-of-" + host + ":" + port);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // stop applying records, the volume is about to close
+    public void stop() {
+        stopped = true;
+        try {
+            Socket s = socket;
+            if (s != null) s.close();
+        } catch (Exception ignored) {}
+    }
+
+    public boolean isConnected() { return connected; }
+
+    public long getAppliedSeq() { return appliedSeq; }
+
+    // time since the primary was last heard from, it pings when idle
+    public long getLagMillis() {
+        if (!connected) return -1;
+        return System.currentTimeMillis() - lastHeard;
+    }
+
+    private void followLoop() {
+        while (!stopped) {
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                if (stopped) return;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(s.getOutputStream(), true, StandardCharsets.UTF_8);
+                out.println("REPLICATE");
+                connected = true;
+                lastHeard = System.currentTimeMillis();
+                System.out.println("Replicating from " + host + ":" + port);
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lastHeard = System.currentTimeMillis();
+                    long seq = apply(line);
+                    appliedSeq = seq;
+                    out.println("ACK " + seq);
+                }
+            } catch (Exception e) {
+                if (stopped) return;
+                System.err.println("Replication from " + host + ":" + port + " lost: " + e.getMessage());
+            }
+            connected = false;
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // "<seq> <op> [arg] [arg]", returns the seq
+    private long apply(String line) throws Exception {
+        String[] parts = line.split(" ", 4);
+        long seq = Long.parseLong(parts[0]);
+        String arg1 = parts.length > 2 ? parts[2] : null;
+        String arg2 = parts.length > 3 ? parts[3] : "";
+
+        switch (parts[1]) {
+            // a ping can overtake records still queued on the primary, never ack past what was applied
+            case "PING":
+                return appliedSeq;
+            case "RESET":
+                wipe("/");
+                break;
+            case "CREATE":
+                store.createFile(arg1);
+                break;
+            case "WRITE":
+                store.writeFile(arg1, Base64.getDecoder().decode(arg2));
+                break;
+            case "DELETE":
+                store.deleteFile(arg1);
+                break;
+            case "MKDIR":
+                store.createDirectory(arg1);
+                break;
+            case "RMDIR":
+                store.deleteDirectory(arg1);
+                break;
+            case "RENAME":
+                store.rename(arg1, arg2);
+                break;
+            default:
+                throw new Exception("unknown replication record: " + line);
+        }
+        return seq;
+    }
+
+    // empty the local volume before a resync
+    private void wipe(String dir) throws Exception {
+        for (String name : store.listDirectory(dir, null, Integer.MAX_VALUE)) {
+            String path = dir.equals("/") ? name : dir + "/" + name;
+            if (name.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+                wipe(path);
+                store.deleteDirectory(path);
+            } else {
+                store.deleteFile(path);
+            }
+        }
+    }
+}
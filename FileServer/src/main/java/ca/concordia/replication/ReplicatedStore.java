@@ -0,0 +1,159 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.FileStat;
+import ca.concordia.filesystem.FileStore;
+import ca.concordia.filesystem.ShardedFileSystemManager;
+
+import java.util.Base64;
+
+// primary side: applies every mutation locally then hands it to the log.
+// applying and logging happen under a lock for the path's top level name, so
+// changes to one subtree are logged in the order the volume saw them while
+// other subtrees (and the volumes they live on) go ahead in parallel. only
+// taking the sequence number is serialized. a replica snapshot holds off all
+// mutations, so it never misses a change or gets one twice
+public class ReplicatedStore implements FileStore {
+    private static final int STRIPES = 64;
+
+    private final FileStore delegate;
+    private final ReplicationPrimary primary;
+    private final Object[] stripes = new Object[STRIPES];
+
+    public ReplicatedStore(FileStore delegate, ReplicationPrimary primary) {
+        this.delegate = delegate;
+        this.primary = primary;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+    }
+
+    private interface Mutation {
+        void apply() throws Exception;
+    }
+
+    // apply then log, returns the record's seq
+    private long logged(String path, String record, Mutation m) throws Exception {
+        primary.mutating.readLock().lock();
+        try {
+            synchronized (stripeFor(path)) {
+                m.apply();
+                return primary.append(record);
+            }
+        } finally {
+            primary.mutating.readLock().unlock();
+        }
+    }
+
+    // a rename can move between subtrees, both are held in index order
+    private long logged(String from, String to, String record, Mutation m) throws Exception {
+        int a = stripeIndex(from), b = stripeIndex(to);
+        if (a == b) return logged(from, record, m);
+        primary.mutating.readLock().lock();
+        try {
+            synchronized (stripes[Math.min(a, b)]) {
+                synchronized (stripes[Math.max(a, b)]) {
+                    m.apply();
+                    return primary.append(record);
+                }
+            }
+        } finally {
+            primary.mutating.readLock().unlock();
+        }
+    }
+
+    private Object stripeFor(String path) {
+        return stripes[stripeIndex(path)];
+    }
+
+    private static int stripeIndex(String path) {
+        return Math.floorMod(ShardedFileSystemManager.topLevel(path).hashCode(), STRIPES);
+    }
+
+    @Override
+    public void createFile(String name) throws Exception {
+        long seq = logged(name, "CREATE " + name, () -> delegate.createFile(name));
+        primary.awaitAck(seq);
+    }
+
+    @Override
+    public void writeFile(String name, byte[] data) throws Exception {
+        long seq = logged(name, "WRITE " + name + " " + Base64.getEncoder().encodeToString(data),
+                () -> delegate.writeFile(name, data));
+        primary.awaitAck(seq);
+    }
+
+    @Override
+    public void writeFileSync(String name, byte[] data) throws Exception {
+        long seq = logged(name, "WRITE " + name + " " + Base64.getEncoder().encodeToString(data),
+                () -> delegate.writeFileSync(name, data));
+        primary.awaitAck(seq);
+    }
+
+    // replicas just get the write, the check already passed here. they number
+    // versions their own way, so they refuse the version commands
+    @Override
+    public long writeFileIfMatch(String name, long expectedVersion, byte[] data) throws Exception {
+        long[] version = new long[1];
+        long seq = logged(name, "WRITE " + name + " " + Base64.getEncoder().encodeToString(data),
+                () -> version[0] = delegate.writeFileIfMatch(name, expectedVersion, data));
+        primary.awaitAck(seq);
+        return version[0];
+    }
+
+    @Override
+    public FileStat stat(String name) throws Exception {
+        return delegate.stat(name);
+    }
+
+    @Override
+    public FileStat readFileIfChanged(String name, long knownVersion) throws Exception {
+        return delegate.readFileIfChanged(name, knownVersion);
+    }
+
+    @Override
+    public void flush() throws Exception {
+        delegate.flush();
+    }
+
+    @Override
+    public byte[] readFile(String name) throws Exception {
+        return delegate.readFile(name);
+    }
+
+    @Override
+    public byte[] readFile(String name, int offset, int length) throws Exception {
+        return delegate.readFile(name, offset, length);
+    }
+
+    @Override
+    public void deleteFile(String name) throws Exception {
+        long seq = logged(name, "DELETE " + name, () -> delegate.deleteFile(name));
+        primary.awaitAck(seq);
+    }
+
+    @Override
+    public String[] listFiles() {
+        return delegate.listFiles();
+    }
+
+    @Override
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        return delegate.listDirectory(path, after, limit);
+    }
+
+    @Override
+    public void createDirectory(String path) throws Exception {
+        long seq = logged(path, "MKDIR " + path, () -> delegate.createDirectory(path));
+        primary.awaitAck(seq);
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws Exception {
+        long seq = logged(path, "RMDIR " + path, () -> delegate.deleteDirectory(path));
+        primary.awaitAck(seq);
+    }
+
+    @Override
+    public void rename(String from, String to) throws Exception {
+        long seq = logged(from, to, "RENAME " + from + " " + to, () -> delegate.rename(from, to));
+        primary.awaitAck(seq);
+    }
+}
@@ -0,0 +1,9 @@
+package ca.concordia.replication;
+
+// when a primary answers a write
+public enum ReplicationMode {
+    // right after applying it locally
+    ASYNC,
+    // once a replica acknowledged it, or after a timeout if none does
+    SEMI_SYNC
+}
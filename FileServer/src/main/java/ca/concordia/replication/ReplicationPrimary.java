@@ -0,0 +1,260 @@
+package ca.concordia.replication;
+
+import ca.concordia.filesystem.FileStore;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// streams the mutation log to replicas over TCP.
+// a replica sends "REPLICATE", gets "<seq> RESET" and a dump of the current
+// tree, then every mutation as "<seq> <op> <args>" and answers "ACK <seq>".
+// idle links get "<seq> PING" so replicas can tell how stale they are
+public class ReplicationPrimary {
+
+    // records a replica may fall behind before it's dropped and has to resync
+    private static final int MAX_QUEUED = 10000;
+    private static final long PING_MS = 1000;
+    private static final long SEMI_SYNC_TIMEOUT_MS = 1000;
+
+    private final FileStore store;
+    private final int port;
+    private final ReplicationMode mode;
+    private final List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+    // when each record not yet acked by everyone was appended, for lag in ms
+    private final ConcurrentSkipListMap<Long, Long> appendedAt = new ConcurrentSkipListMap<>();
+    private final Object ackLock = new Object();
+    // shared by mutations while they apply and log, a new replica's snapshot takes it exclusively
+    final ReentrantReadWriteLock mutating = new ReentrantReadWriteLock();
+    private long seq = 0;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean stopped;
+
+    // store is the local volume, before it gets wrapped in a ReplicatedStore
+    public ReplicationPrimary(FileStore store, int port, ReplicationMode mode) {
+        this.store = store;
+        this.port = port;
+        this.mode = mode;
+    }
+
+    public void start() {
+        Thread t = new Thread(this::acceptLoop, "replication-primary");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // for shutdown: stop accepting and drop the replicas, they resync from whoever
+    // takes over the port
+    public void stop() {
+        stopped = true;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (Exception ignored) {}
+        for (ReplicaLink r : replicas) r.close();
+    }
+
+    public ReplicationMode getMode() { return mode; }
+
+    public int getReplicaCount() { return replicas.size(); }
+
+    public synchronized long getLastSeq() { return seq; }
+
+    // records the slowest replica still has to acknowledge
+    public synchronized long getLagRecords() {
+        long lag = 0;
+        for (ReplicaLink r : replicas)
+            lag = Math.max(lag, seq - r.acked);
+        return lag;
+    }
+
+    // how long the oldest record not acked by every replica has been waiting
+    public long getLagMillis() {
+        if (replicas.isEmpty()) return 0;
+        Map.Entry<Long, Long> oldest = appendedAt.firstEntry();
+        return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.getValue());
+    }
+
+    // called by ReplicatedStore once the mutation is applied, only the numbering is serialized
+    synchronized long append(String op) {
+        seq++;
+        if (!replicas.isEmpty()) {
+            appendedAt.put(seq, System.nanoTime());
+            for (ReplicaLink r : replicas) r.offer(seq + " " + op);
+        }
+        return seq;
+    }
+
+    // semi-sync writes wait here, outside the lock, for the first replica to catch up
+    void awaitAck(long target) throws InterruptedException {
+        if (mode != ReplicationMode.SEMI_SYNC || replicas.isEmpty()) return;
+
+        long deadline = System.currentTimeMillis() + SEMI_SYNC_TIMEOUT_MS;
+        synchronized (ackLock) {
+            while (maxAcked() < target) {
+                long left = deadline - System.currentTimeMillis();
+                // no replica answered in time, degrade to async rather than block writers
+                if (left <= 0 || replicas.isEmpty()) return;
+                ackLock.wait(left);
+            }
+        }
+    }
+
+    private long maxAcked() {
+        long max = 0;
+        for (ReplicaLink r : replicas) max = Math.max(max, r.acked);
+        return max;
+    }
+
+    private void acked() {
+        long min = Long.MAX_VALUE;
+        for (ReplicaLink r : replicas) min = Math.min(min, r.acked);
+        appendedAt.headMap(min, true).clear();
+        synchronized (ackLock) {
+            ackLock.notifyAll();
+        }
+    }
+
+    private void acceptLoop() {
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            // a primary taking over binds once the old one has stopped replicating,
+            // its connections may still be lingering
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(port));
+            this.serverSocket = serverSocket;
+            if (stopped) return;
+            System.out.println("Replication listening on port " + port + "...");
+            while (true) {
+                Socket s = serverSocket.accept();
+                try {
+                    attach(s);
+                } catch (Exception e) {
+                    System.err.println("Replica " + s + " failed to attach: " + e.getMessage());
+                    try { s.close(); } catch (Exception ignored) {}
+                }
+            }
+        } catch (Exception e) {
+            if (stopped) return;
+            System.err.println("Could not start replication on port " + port);
+            e.printStackTrace();
+        }
+    }
+
+    private void attach(Socket s) throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        if (!"REPLICATE".equals(in.readLine()))
+            throw new Exception("bad handshake");
+
+        ReplicaLink link = new ReplicaLink(s, in);
+        // no mutation can slip in between the dump and joining the live stream
+        mutating.writeLock().lock();
+        try {
+            synchronized (this) {
+                link.offer(seq + " RESET");
+                dump("/", link);
+                link.acked = 0;
+                replicas.add(link);
+            }
+        } finally {
+            mutating.writeLock().unlock();
+        }
+        System.out.println("Replica attached: " + s);
+        link.start();
+    }
+
+    private void dump(String dir, ReplicaLink link) throws Exception {
+        for (String name : store.listDirectory(dir, null, Integer.MAX_VALUE)) {
+            String path = dir.equals("/") ? name : dir + "/" + name;
+            if (name.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+                link.offer(seq + " MKDIR " + path);
+                dump(path, link);
+            } else {
+                byte[] data = store.readFile(path);
+                link.offer(seq + " WRITE " + path + " " + Base64.getEncoder().encodeToString(data));
+            }
+        }
+    }
+
+    private class ReplicaLink {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+        volatile long acked;
+        private volatile boolean closed;
+
+        ReplicaLink(Socket socket, BufferedReader in) throws Exception {
+            this.socket = socket;
+            this.in = in;
+            this.out = new PrintWriter(socket.getOutputStream(), false, StandardCharsets.UTF_8);
+        }
+
+        void offer(String line) {
+            // too far behind, cut it loose and let it resync on reconnect
+            if (!queue.offer(line)) close();
+        }
+
+        void start() {
+            Thread sender = new Thread(this::sendLoop, "replication-send-" + socket.getPort());
+            sender.setDaemon(true);
+            sender.start();
+            Thread acks = new Thread(this::ackLoop, "replication-ack-" + socket.getPort());
+            acks.setDaemon(true);
+            acks.start();
+        }
+
+        private void sendLoop() {
+            try {
+                while (!closed) {
+                    String line = queue.poll(PING_MS, TimeUnit.MILLISECONDS);
+                    if (line == null) line = getLastSeq() + " PING";
+                    out.println(line);
+                    // batch whatever else is already queued into one flush
+                    while ((line = queue.poll()) != null) out.println(line);
+                    out.flush();
+                    if (out.checkError()) break;
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        private void ackLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("ACK ")) {
+                        acked = Long.parseLong(line.substring(4).trim());
+                        acked();
+                    }
+                }
+            } catch (Exception ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            replicas.remove(this);
+            try { socket.close(); } catch (Exception ignored) {}
+            System.err.println("Replica detached: " + socket);
+            acked();
+        }
+    }
+}
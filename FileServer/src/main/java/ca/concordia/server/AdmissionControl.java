@@ -0,0 +1,66 @@
+package ca.concordia.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// caps how many requests run at once across all clients.
+// waiting requests are served first come first served, so a client can't
+// jump ahead of the others. when the wait list is full or a request has
+// waited too long it is turned away and the client gets BUSY
+public class AdmissionControl {
+
+    private final Semaphore slots;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long maxWaitMs;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionControl(int maxInFlight, int maxQueued, long maxWaitMs) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        this.slots = new Semaphore(maxInFlight, true);
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    // true when the request may run, it must call release() when done
+    public boolean admit() throws InterruptedException {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            if (!slots.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        } finally {
+            queued.decrementAndGet();
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    // for shutdown: takes every slot, so it returns once the requests running or
+    // already waiting have finished and anything arriving later gets BUSY.
+    // false when they didn't all finish within timeoutMs. the slots are never given back
+    public boolean drain(long timeoutMs) throws InterruptedException {
+        return slots.tryAcquire(maxInFlight, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public int getQueued() { return queued.get(); }
+
+    public long getAdmitted() { return admitted.get(); }
+
+    public long getRejected() { return rejected.get(); }
+}
@@ -1,22 +1,153 @@
 package ca.concordia.server;
+import ca.concordia.filesystem.BlockScrubber;
+import ca.concordia.filesystem.FileStat;
+import ca.concordia.filesystem.FileStore;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystemManager;
+import ca.concordia.filesystem.WriteBehindStore;
+import ca.concordia.replication.ReplicaClient;
+import ca.concordia.replication.ReplicatedStore;
+import ca.concordia.replication.ReplicationMode;
+import ca.concordia.replication.ReplicationPrimary;
+import ca.concordia.watch.WatchHub;
+import ca.concordia.watch.WatchedStore;
+import ca.concordia.watch.Watcher;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileServer {
 
-    private FileSystemManager fsManager;
+    // names per LIST reply, the rest is fetched with the NEXT cursor
+    private static final int LIST_PAGE = 100;
+    // refused on a replica, they only change through the primary's log
+    private static final Set<String> MUTATIONS = Set.of("CREATE", "WRITE", "WRITESYNC", "WRITE-IF-MATCH", "DELETE", "MKDIR", "RMDIR", "RENAME");
+    // a replica numbers the versions of what it applies itself, they mean nothing to the primary
+    private static final Set<String> VERSIONED = Set.of("STAT", "READ-IF-CHANGED");
+
+    private FileStore fsManager;
+    // every backing volume, for settings and stats
+    private List<FileSystemManager> volumes;
     private int port;
+    private ReplicationPrimary primary;
+    private ReplicaClient replica;
+    private WriteBehindStore writeBehind;
+    private BlockScrubber scrubber;
+    // where BACKUP writes, null when backups are off
+    private Path backupDir;
+    // WATCH subscriptions, fed by the WatchedStore right on top of the volumes
+    private final WatchHub watchHub = new WatchHub();
+
+    // overload protection, see setAdmission, setRateLimits and setMaxRequestBytes
+    private AdmissionControl admission = new AdmissionControl(64, 256, 100);
+    private double opsPerSec = 0;
+    private double bytesPerSec = 0;
+    private int maxRequestBytes = 64 * 1024;
+    private final AtomicLong throttledMs = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+
+    // lifecycle, see start and shutdown
+    private volatile ServerSocket listener;
+    private volatile Thread acceptThread;
+    private volatile boolean shuttingDown = false;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private long warmUpMs;
     public FileServer(int port, String fileSystemName, int totalSize){
         // Initialize FileSystemManager
-        this.fsManager = new FileSystemManager(fileSystemName, totalSize);
+        FileSystemManager fs = new FileSystemManager(fileSystemName, totalSize);
+        this.fsManager = new WatchedStore(fs, watchHub);
+        this.volumes = List.of(fs);
+        this.port = port;
+    }
+
+    // one volume per file, files are spread over them by name
+    public FileServer(int port, String[] fileSystemNames, int totalSize){
+        this(port, fileSystemNames, totalSize, 0);
+    }
+
+    // lockWaitMs: how long to wait for a server this one takes over from to let go
+    // of the volumes, see bind
+    public FileServer(int port, String[] fileSystemNames, int totalSize, long lockWaitMs){
+        if (fileSystemNames.length == 1) {
+            FileSystemManager fs = new FileSystemManager(fileSystemNames[0], totalSize, lockWaitMs);
+            this.fsManager = new WatchedStore(fs, watchHub);
+            this.volumes = List.of(fs);
+        } else {
+            ShardedFileSystemManager sharded = new ShardedFileSystemManager(fileSystemNames, totalSize, lockWaitMs);
+            this.fsManager = new WatchedStore(sharded, watchHub);
+            this.volumes = sharded.getShards();
+        }
         this.port = port;
     }
 
+    public List<FileSystemManager> getVolumes() { return volumes; }
+
+    // act as primary: every change is logged and streamed to replicas connecting
+    // on replicationPort. changes under different top level names are applied in
+    // parallel, only ones to the same subtree wait for each other. call before start()
+    public void enableReplication(int replicationPort, ReplicationMode mode) {
+        primary = new ReplicationPrimary(fsManager, replicationPort, mode);
+        fsManager = new ReplicatedStore(fsManager, primary);
+        primary.start();
+    }
+
+    // acknowledge WRITE once it is buffered, see WriteBehindStore. WRITESYNC still
+    // goes straight to disk. call before start(), after enableReplication so
+    // coalesced writes are what gets replicated
+    public void enableWriteBehind(long maxStalenessMs, long maxBufferedBytes) {
+        writeBehind = new WriteBehindStore(fsManager, maxStalenessMs, maxBufferedBytes);
+        fsManager = writeBehind;
+    }
+
+    // at most maxInFlight requests run at once, up to maxQueued more wait in
+    // arrival order for maxWaitMs. anything past that is answered BUSY
+    public void setAdmission(int maxInFlight, int maxQueued, long maxWaitMs) {
+        admission = new AdmissionControl(maxInFlight, maxQueued, maxWaitMs);
+    }
+
+    // per connection limits, a client over them is slowed down rather than refused.
+    // 0 means unlimited
+    public void setRateLimits(double opsPerSec, double bytesPerSec) {
+        this.opsPerSec = opsPerSec;
+        this.bytesPerSec = bytesPerSec;
+    }
+
+    // longest request line, checked while reading so big ones are never held in memory
+    public void setMaxRequestBytes(int maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    // check every data block against its checksum in the background, blocksPerSec at most
+    public void enableScrubbing(double blocksPerSec) {
+        scrubber = new BlockScrubber(volumes, blocksPerSec);
+        scrubber.start();
+    }
+
+    // let BACKUP write consistent copies of the volumes into dir
+    public void setBackupDir(String dir) {
+        this.backupDir = Path.of(dir);
+    }
+
+    // act as a read only replica of the primary's replication port. call before start()
+    public void replicateFrom(String host, int replicationPort) {
+        replica = new ReplicaClient(fsManager, host, replicationPort);
+        replica.start();
+    }
+
     private void clientHandling(Socket clientSocket){
         // no exception kills  thread
         Thread.currentThread().setUncaughtExceptionHandler((t, e) -> {
@@ -24,23 +155,27 @@ public class FileServer {
         });
 
         System.out.println("Handling client: " + clientSocket);
+        TokenBucket ops = new TokenBucket(opsPerSec, Math.max(1, opsPerSec));
+        TokenBucket bytes = new TokenBucket(bytesPerSec, bytesPerSec);
+        // set up by the first WATCH, events then go out on this connection as "EVENT <type> <path>"
+        Watcher watcher = null;
         try (
-                BufferedReader reader =
-                        new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                 PrintWriter writer =
                         new PrintWriter(clientSocket.getOutputStream(), true)
         ) {
+            RequestReader reader = new RequestReader(clientSocket.getInputStream(), maxRequestBytes);
             String line;
             // don't exit on errors
             while (true) {
+                // draining: the last request got its answer, the client reconnects to whoever holds the port now
+                if (shuttingDown)
+                    return;
+                boolean admitted = false;
                 try {
                     line = reader.readLine();
-                    // client disconnected 
-                    if (line == null) {
-                        writer.println("ERROR");
-                        writer.flush();
-                        continue;  
-                    }
+                    // client disconnected, nobody left to answer
+                    if (line == null)
+                        return;
 
                     System.out.println("Received from client: " + line);
 
@@ -51,9 +186,30 @@ public class FileServer {
                         continue;
                     }
 
+                    // over its rate the client waits here, its requests pile up in its own socket
+                    throttledMs.addAndGet(ops.take(1) + bytes.take(line.length() + 1));
+
                     String[] parts = line.split(" ", 3);
                     String command = parts[0].toUpperCase();
 
+                    admitted = admission.admit();
+                    if (!admitted) {
+                        writer.println("BUSY");
+                        writer.flush();
+                        continue;
+                    }
+
+                    if (replica != null && MUTATIONS.contains(command)) {
+                        writer.println("ERROR: read-only replica");
+                        writer.flush();
+                        continue;
+                    }
+                    if (replica != null && VERSIONED.contains(command)) {
+                        writer.println("ERROR: versions are only served by the primary");
+                        writer.flush();
+                        continue;
+                    }
+
                     switch (command) {
                         case "CREATE":
                             if (parts.length < 2) {
@@ -81,20 +237,93 @@ public class FileServer {
                                 writer.println("ERROR");
                             }
                             break;
-                        // read 
+                        // write that is on disk before the reply, even with write-behind on
+                        case "WRITESYNC":
+                            if (parts.length < 3) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                fsManager.writeFileSync(parts[1], parts[2].getBytes());
+                                writer.println("SUCCESS: wrote to '" + parts[1] + "'");
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+                        // read, READ <name> <offset> <length> for a range of the file. a range
+                        // can end inside a character, so it is answered in base64
                         case "READ":
                             if (parts.length < 2) {
                                 writer.println("ERROR");
                                 break;
                             }
                             try {
-                                byte[] fileData = fsManager.readFile(parts[1]);
-                                writer.println("SUCCESS: " + new String(fileData));
+                                if (parts.length < 3) {
+                                    writer.println("SUCCESS: " + new String(fsManager.readFile(parts[1])));
+                                    break;
+                                }
+                                String[] range = parts[2].trim().split(" +");
+                                if (range.length != 2) {
+                                    writer.println("ERROR");
+                                    break;
+                                }
+                                byte[] slice = fsManager.readFile(parts[1], Integer.parseInt(range[0]), Integer.parseInt(range[1]));
+                                writer.println("SUCCESS: " + Base64.getEncoder().encodeToString(slice));
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        // size and version without the data
+                        case "STAT":
+                            if (parts.length < 2) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                FileStat st = fsManager.stat(parts[1]);
+                                writer.println(String.format("SUCCESS: size=%d version=%d checksum=%08x",
+                                        st.getSize(), st.getVersion(), st.getChecksum()));
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        // READ-IF-CHANGED <name> <version>: "UNCHANGED <version>" when the
+                        // client is up to date, else "CHANGED <version> <data>"
+                        case "READ-IF-CHANGED":
+                            if (parts.length < 3) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                FileStat st = fsManager.readFileIfChanged(parts[1], Long.parseLong(parts[2].trim()));
+                                if (st.getData() == null)
+                                    writer.println("SUCCESS: UNCHANGED " + st.getVersion());
+                                else
+                                    writer.println("SUCCESS: CHANGED " + st.getVersion() + " " + new String(st.getData()));
                             } catch (Exception ex) {
                                 writer.println("ERROR");
                             }
                             break;
 
+                        // WRITE-IF-MATCH <name> <version> <data>, version 0 for a new file.
+                        // answers with the new version
+                        case "WRITE-IF-MATCH":
+                            String[] versioned = parts.length < 3 ? new String[0] : parts[2].split(" ", 2);
+                            if (versioned.length < 2) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                long version = fsManager.writeFileIfMatch(parts[1], Long.parseLong(versioned[0]), versioned[1].getBytes());
+                                writer.println("SUCCESS: wrote to '" + parts[1] + "' version=" + version);
+                            } catch (Exception ex) {
+                                writer.println(ex.getMessage() != null && ex.getMessage().startsWith("ERROR: version mismatch")
+                                        ? ex.getMessage() : "ERROR");
+                            }
+                            break;
+
                         // delete a file
                         case "DELETE":
                             if (parts.length < 2) {
@@ -109,19 +338,166 @@ public class FileServer {
                             }
                             break;
 
-                        // list all files
+                        // list a directory (root by default), one page at a time:
+                        // LIST [dir] [cursor] answers "a,b,c NEXT c" while more remain
                         case "LIST":
                             try {
-                                String[] files = fsManager.listFiles();
-                                if (files.length == 0)
+                                String dir = parts.length >= 2 ? parts[1] : "/";
+                                String after = parts.length >= 3 ? parts[2] : null;
+                                String[] files = fsManager.listDirectory(dir, after, LIST_PAGE + 1);
+                                if (files.length == 0) {
                                     writer.println("SUCCESS: (no files)");
-                                else
+                                } else if (files.length <= LIST_PAGE) {
                                     writer.println("SUCCESS: " + String.join(",", files));
+                                } else {
+                                    String[] page = Arrays.copyOf(files, LIST_PAGE);
+                                    String last = page[LIST_PAGE - 1];
+                                    if (last.endsWith("/")) last = last.substring(0, last.length() - 1);
+                                    writer.println("SUCCESS: " + String.join(",", page) + " NEXT " + last);
+                                }
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        case "MKDIR":
+                            if (parts.length < 2) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                fsManager.createDirectory(parts[1]);
+                                writer.println("SUCCESS: Directory '" + parts[1] + "' created.");
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        case "RMDIR":
+                            if (parts.length < 2) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                fsManager.deleteDirectory(parts[1]);
+                                writer.println("SUCCESS: Directory '" + parts[1] + "' removed.");
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        case "RENAME":
+                            if (parts.length < 3) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                fsManager.rename(parts[1], parts[2]);
+                                writer.println("SUCCESS: '" + parts[1] + "' renamed to '" + parts[2] + "'.");
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        // WATCH <path> or WATCH <prefix>*, UNWATCH takes the same pattern
+                        case "WATCH":
+                            if (parts.length < 2) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            if (watcher == null) watcher = watchHub.open(writer);
+                            watcher.add(parts[1]);
+                            writer.println("SUCCESS: watching '" + parts[1] + "'");
+                            break;
+
+                        case "UNWATCH":
+                            if (parts.length < 2 || watcher == null || !watcher.remove(parts[1])) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            writer.println("SUCCESS: stopped watching '" + parts[1] + "'");
+                            break;
+
+                        // point in time copies, readable while the live tree moves on
+                        case "SNAPSHOT":
+                            if (parts.length < 2) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                // buffered writes belong in it
+                                fsManager.flush();
+                                FileSystemManager.createSnapshot(volumes, parts[1]);
+                                writer.println("SUCCESS: Snapshot '" + parts[1] + "' created.");
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        case "SNAPSHOTS":
+                            String[] snaps = volumes.get(0).listSnapshots();
+                            writer.println("SUCCESS: " + (snaps.length == 0 ? "(no snapshots)" : String.join(",", snaps)));
+                            break;
+
+                        case "DROPSNAPSHOT":
+                            if (parts.length < 2) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                for (FileSystemManager v : volumes) v.deleteSnapshot(parts[1]);
+                                writer.println("SUCCESS: Snapshot '" + parts[1] + "' deleted.");
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        // READ-SNAPSHOT <snapshot> <path>
+                        case "READ-SNAPSHOT":
+                            if (parts.length < 3) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                writer.println("SUCCESS: " + new String(readSnapshotFile(parts[1], parts[2].trim())));
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        // LIST-SNAPSHOT <snapshot> [dir]
+                        case "LIST-SNAPSHOT":
+                            if (parts.length < 2) {
+                                writer.println("ERROR");
+                                break;
+                            }
+                            try {
+                                String[] files = listSnapshotDirectory(parts[1], parts.length >= 3 ? parts[2].trim() : "/");
+                                writer.println("SUCCESS: " + (files.length == 0 ? "(no files)" : String.join(",", files)));
+                            } catch (Exception ex) {
+                                writer.println("ERROR");
+                            }
+                            break;
+
+                        // BACKUP [snapshot]: write a snapshot, or the tree as of now, to the backup dir
+                        case "BACKUP":
+                            if (backupDir == null) {
+                                writer.println("ERROR: backups are not enabled");
+                                break;
+                            }
+                            try {
+                                Path file = backup(parts.length >= 2 ? parts[1] : null);
+                                writer.println("SUCCESS: backup written to '" + file + "' (" + Files.size(file) + " bytes)");
                             } catch (Exception ex) {
                                 writer.println("ERROR");
                             }
                             break;
 
+                        // storage counters
+                        case "STATS":
+                            writer.println("SUCCESS: " + storageStats() + writeBehindStats() + replicationStats() + admissionStats() + watchStats() + startupStats());
+                            break;
+
                         case "QUIT":
                             writer.println("SUCCESS: Disconnecting.");
                             writer.flush();
@@ -132,6 +508,10 @@ public class FileServer {
                             break;
                     }
 
+                    writer.flush();
+                } catch (RequestReader.RequestTooLargeException ex) {
+                    tooLarge.incrementAndGet();
+                    writer.println(ex.getMessage());
                     writer.flush();
                 } catch (Exception ex) {
                     //don't close the connection on internal errors
@@ -139,30 +519,246 @@ public class FileServer {
                     writer.flush();
                     // continue to next read instead of dying
                     continue;
+                } finally {
+                    if (admitted) admission.release();
                 }
             }
         } catch (Exception e) {
             System.err.println("Client thread error: " + e.getMessage());
         } finally {
+            if (watcher != null) watchHub.close(watcher);
+            clients.remove(clientSocket);
             try { clientSocket.close(); } catch (Exception e) {}
             System.err.println("Closed connection " + clientSocket);
         }
     }
+    // the path lives on one volume, the others don't have it
+    private byte[] readSnapshotFile(String snapshot, String path) throws Exception {
+        Exception missing = null;
+        for (FileSystemManager v : volumes) {
+            try {
+                return v.readSnapshotFile(snapshot, path);
+            } catch (Exception e) {
+                missing = e;
+            }
+        }
+        throw missing;
+    }
+
+    private String[] listSnapshotDirectory(String snapshot, String dir) throws Exception {
+        List<String> all = new ArrayList<>();
+        Exception missing = null;
+        boolean found = false;
+        for (FileSystemManager v : volumes) {
+            try {
+                all.addAll(Arrays.asList(v.listSnapshotDirectory(snapshot, dir)));
+                found = true;
+            } catch (Exception e) {
+                missing = e;
+            }
+        }
+        if (!found) throw missing;
+        all.sort(null);
+        return all.toArray(new String[0]);
+    }
+
+    // without a snapshot name a temporary one is taken and dropped afterwards.
+    // writers only wait for the snapshot itself, not for the copy
+    private Path backup(String snapshot) throws Exception {
+        // the name ends up in a file name, only snapshots every volume has will do
+        if (snapshot != null)
+            for (FileSystemManager v : volumes)
+                if (!Arrays.asList(v.listSnapshots()).contains(snapshot))
+                    throw new Exception("ERROR: snapshot '" + snapshot + "' does not exist");
+        String name = snapshot;
+        if (name == null) {
+            name = "backup-" + System.currentTimeMillis();
+            fsManager.flush();
+            FileSystemManager.createSnapshot(volumes, name);
+        }
+        Path file;
+        try {
+            Path dir = backupDir.toAbsolutePath().normalize();
+            file = dir.resolve(name + (snapshot == null ? "" : "-" + System.currentTimeMillis()) + ".bak").normalize();
+            if (!file.startsWith(dir))
+                throw new Exception("ERROR: backup would leave the backup dir");
+            Files.createDirectories(dir);
+            try (OutputStream out = Files.newOutputStream(file)) {
+                for (FileSystemManager v : volumes) v.backup(name, out);
+            } catch (Exception e) {
+                // no half written backups
+                Files.deleteIfExists(file);
+                throw e;
+            }
+        } finally {
+            if (snapshot == null)
+                for (FileSystemManager v : volumes) v.deleteSnapshot(name);
+        }
+        return file;
+    }
+
+    // counters summed over all volumes
+    private String storageStats() {
+        long nodes = 0, dataBlocks = 0, blockWrites = 0, saved = 0, logical = 0, stored = 0, diskReads = 0, cacheHits = 0;
+        long writesSkipped = 0, checksumErrors = 0, corrupt = 0, scrubbed = 0;
+        for (FileSystemManager v : volumes) {
+            checksumErrors += v.getChecksumErrors();
+            corrupt += v.getCorruptBlocks().size();
+            scrubbed += v.getScrubbedBlocks();
+            writesSkipped += v.getWritesSkipped();
+            diskReads += v.getDiskReads();
+            cacheHits += v.getCacheHits();
+            nodes += v.getUsedNodes();
+            dataBlocks += v.getUsedDataBlocks();
+            blockWrites += v.getLogicalBlockWrites();
+            saved += v.getBlockWritesSaved();
+            logical += v.getLogicalBytes();
+            stored += v.getStoredBytes();
+        }
+        FileSystemManager first = volumes.get(0);
+        return String.format("volumes=%d dedup=%s dedupRatio=%.2f blockWrites=%d blockWritesSaved=%d"
+                        + " compression=%s logicalBytes=%d storedBytes=%d diskReads=%d cacheHits=%d writesSkipped=%d"
+                        + " checksumErrors=%d corruptBlocks=%d scrubbedBlocks=%d scrubPasses=%d",
+                volumes.size(),
+                first.isDedupEnabled() ? "on" : "off",
+                dataBlocks == 0 ? 1.0 : (double) nodes / dataBlocks,
+                blockWrites, saved,
+                first.getCompression().name().toLowerCase(),
+                logical, stored, diskReads, cacheHits, writesSkipped,
+                checksumErrors, corrupt, scrubbed, scrubber == null ? 0 : scrubber.getPasses());
+    }
+
+    private String writeBehindStats() {
+        if (writeBehind == null) return " writeBehind=off";
+        return String.format(" writeBehind=on bufferedFiles=%d bufferedBytes=%d coalescedWrites=%d flushedWrites=%d flushErrors=%d",
+                writeBehind.getBufferedFiles(), writeBehind.getBufferedBytes(), writeBehind.getCoalescedWrites(),
+                writeBehind.getFlushedWrites(), writeBehind.getFlushErrors());
+    }
+
+    private String watchStats() {
+        return String.format(" watchers=%d eventsSent=%d eventsCoalesced=%d eventsDropped=%d",
+                watchHub.getWatcherCount(), watchHub.getSent(), watchHub.getCoalesced(), watchHub.getDropped());
+    }
+
+    private String admissionStats() {
+        return String.format(" admitted=%d busy=%d queued=%d throttledMs=%d tooLarge=%d",
+                admission.getAdmitted(), admission.getRejected(), admission.getQueued(),
+                throttledMs.get(), tooLarge.get());
+    }
+
+    // how long the last start took to get ready, summed over the volumes
+    private String startupStats() {
+        long lockWait = 0, load = 0;
+        for (FileSystemManager v : volumes) {
+            lockWait += v.getLockWaitMs();
+            load += v.getLoadMs();
+        }
+        return String.format(" lockWaitMs=%d loadMs=%d warmUpMs=%d", lockWait, load, warmUpMs);
+    }
+
+    private String replicationStats() {
+        if (primary != null)
+            return String.format(" role=primary mode=%s replicas=%d replSeq=%d replLagRecords=%d replLagMs=%d",
+                    primary.getMode().name().toLowerCase(), primary.getReplicaCount(),
+                    primary.getLastSeq(), primary.getLagRecords(), primary.getLagMillis());
+        if (replica != null)
+            return String.format(" role=replica connected=%s replSeq=%d replLagMs=%d",
+                    replica.isConnected(), replica.getAppliedSeq(), replica.getLagMillis());
+        return " role=standalone";
+    }
+
+    // a listening socket on port. with handoff, other processes can bind it too and
+    // the kernel spreads new connections over them: a server taking over binds before
+    // opening the volumes, and clients queue in its backlog until the old one lets go
+    // of them. without it, binding a port a server is on fails
+    public static ServerSocket bind(int port, boolean handoff) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        if (handoff && serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        serverSocket.bind(new InetSocketAddress(port));
+        return serverSocket;
+    }
+
     //multithreading
     public void start(){
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started. Listening on port " + port + "...");
+        try {
+            start(bind(port, false));
+        } catch (Exception e) {
+            System.err.println("Could not start server on port " + port);
+            e.printStackTrace();
+        }
+    }
 
-            while (true) {
+    // serve on a socket from bind(), until shutdown
+    public void start(ServerSocket serverSocket){
+        listener = serverSocket;
+        acceptThread = Thread.currentThread();
+        try (serverSocket) {
+            // first requests after a restart shouldn't pay for cold caches
+            long t0 = System.nanoTime();
+            for (FileSystemManager v : volumes) {
+                try {
+                    v.warmUp();
+                } catch (Exception e) {
+                    System.err.println("Warm-up failed: " + e.getMessage());
+                }
+            }
+            warmUpMs = (System.nanoTime() - t0) / 1_000_000;
+            System.out.println("Server started. Listening on port " + port + "..." + startupStats());
+
+            while (!shuttingDown) {
                 Socket clientSocket = serverSocket.accept();
+                clients.add(clientSocket);
                 System.out.println("Handling new client: " + clientSocket);
                 Thread Cthread = new Thread(() -> clientHandling(clientSocket));
                 Cthread.start();
             }
         } catch (Exception e) {
+            // shutdown closed the socket
+            if (shuttingDown) return;
             System.err.println("Could not start server on port " + port);
             e.printStackTrace();
         }
     }
+
+    // graceful stop: no new connections, requests already running or waiting get to
+    // finish (up to timeoutMs), then idle connections are closed, buffered writes
+    // flushed and the volumes forced to disk and unlocked for the next process.
+    // safe to call more than once
+    public synchronized void shutdown(long timeoutMs) {
+        if (shuttingDown) return;
+        shuttingDown = true;
+        long t0 = System.nanoTime();
+        System.out.println("Shutting down, draining requests...");
+
+        try {
+            if (listener != null) listener.close();
+            // the socket is only really closed once accept() has returned
+            if (acceptThread != null && acceptThread != Thread.currentThread()) acceptThread.join(1000);
+        } catch (Exception ignored) {}
+        if (primary != null) primary.stop();
+        if (replica != null) replica.stop();
+
+        try {
+            if (!admission.drain(timeoutMs))
+                System.err.println("Requests still running after " + timeoutMs + " ms, closing anyway");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Socket s : clients) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+
+        if (scrubber != null) scrubber.stop();
+        try {
+            if (writeBehind != null) writeBehind.close();
+            else fsManager.flush();
+        } catch (Exception e) {
+            System.err.println("Flush on shutdown failed: " + e.getMessage());
+        }
+        for (FileSystemManager v : volumes) v.close();
+        System.out.println("Shut down in " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+    }
     
-}
\ No newline at end of file
+}
@@ -0,0 +1,53 @@
+package ca.concordia.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// line reader that never holds more than maxBytes of a request.
+// an oversized line is read to its end and thrown away, the caller gets
+// RequestTooLargeException and the connection stays usable
+public class RequestReader {
+
+    private final InputStream in;
+    private final int maxBytes;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    public RequestReader(InputStream in, int maxBytes) {
+        this.in = new BufferedInputStream(in);
+        this.maxBytes = maxBytes;
+    }
+
+    // next line without the line break, null once the client is gone
+    public String readLine() throws IOException {
+        line.reset();
+        boolean tooLarge = false;
+        long length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            length++;
+            if (tooLarge) continue;
+            if (line.size() >= maxBytes) {
+                tooLarge = true;
+                line.reset();
+                continue;
+            }
+            line.write(b);
+        }
+        if (b == -1 && length == 0) return null;
+        if (tooLarge)
+            throw new RequestTooLargeException(length);
+
+        String s = line.toString();
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    public static class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestTooLargeException(long length) {
+            super("ERROR: request too large (" + length + " bytes)");
+        }
+    }
+}
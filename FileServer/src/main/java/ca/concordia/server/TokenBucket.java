@@ -0,0 +1,34 @@
+package ca.concordia.server;
+
+// rate limit for one connection: refills ratePerSec tokens a second up to burst.
+// take() goes into debt for big requests and sleeps it off, so a limit smaller
+// than one request still lets it through, just slowly
+public class TokenBucket {
+
+    private final double ratePerSec;
+    private final double burst;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    // ratePerSec <= 0 means unlimited
+    public TokenBucket(double ratePerSec, double burst) {
+        this.ratePerSec = ratePerSec;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    // blocks until n tokens are paid for, returns how long it waited in ms
+    public long take(double n) throws InterruptedException {
+        if (ratePerSec <= 0) return 0;
+
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) / 1e9 * ratePerSec);
+        last = now;
+        tokens -= n;
+        if (tokens >= 0) return 0;
+
+        long waitMs = (long) Math.ceil(-tokens / ratePerSec * 1000);
+        Thread.sleep(waitMs);
+        return waitMs;
+    }
+}
@@ -0,0 +1,54 @@
+package ca.concordia.watch;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// hands change events to the connections watching them.
+// patterns are a path ("logs/today") or a prefix ending in '*' ("logs/*", "*").
+// paths have no leading or trailing '/', directories are reported with a trailing '/'
+public class WatchHub {
+
+    private final List<Watcher> watchers = new CopyOnWriteArrayList<>();
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong coalesced = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    // events for this connection are written to out from a thread of its own
+    public Watcher open(PrintWriter out) {
+        Watcher w = new Watcher(this, out);
+        watchers.add(w);
+        w.start();
+        return w;
+    }
+
+    public void close(Watcher w) {
+        watchers.remove(w);
+        w.stop();
+    }
+
+    // never blocks, slow watchers coalesce or drop instead
+    public void publish(String type, String path, boolean directory) {
+        if (watchers.isEmpty()) return;
+        String p = directory ? normalize(path) + "/" : normalize(path);
+        for (Watcher w : watchers)
+            if (w.matches(p)) w.offer(type, p);
+    }
+
+    public int getWatcherCount() { return watchers.size(); }
+
+    public long getSent() { return sent.get(); }
+
+    // events folded into a newer one for the same path before they went out
+    public long getCoalesced() { return coalesced.get(); }
+
+    public long getDropped() { return dropped.get(); }
+
+    static String normalize(String path) {
+        int start = 0, end = path.length();
+        while (start < end && path.charAt(start) == '/') start++;
+        while (end > start && path.charAt(end - 1) == '/') end--;
+        return path.substring(start, end);
+    }
+}
@@ -0,0 +1,140 @@
+package ca.concordia.watch;
+
+import ca.concordia.filesystem.FileStat;
+import ca.concordia.filesystem.FileStore;
+
+// publishes a change event once each mutation has gone through to the volume.
+// CREATE, WRITE and DELETE for files, CREATE and DELETE with a trailing '/'
+// for directories, and a rename is a DELETE of the old path then a CREATE of the new one.
+// only real changes are published: the file's version is compared before and after,
+// a create of an existing file or a write of the same contents says nothing, and a
+// write that creates the file is its CREATE. the lookups are skipped while nobody is
+// watching. they aren't atomic with the mutation: two writers racing to create the
+// same file can both report CREATE, and a write racing another can be reported as
+// the other's WRITE
+public class WatchedStore implements FileStore {
+    private final FileStore delegate;
+    private final WatchHub hub;
+
+    public WatchedStore(FileStore delegate, WatchHub hub) {
+        this.delegate = delegate;
+        this.hub = hub;
+    }
+
+    @Override
+    public void createFile(String name) throws Exception {
+        long before = versionOf(name);
+        delegate.createFile(name);
+        if (before == 0) hub.publish("CREATE", name, false);
+    }
+
+    @Override
+    public void writeFile(String name, byte[] data) throws Exception {
+        long before = versionOf(name);
+        delegate.writeFile(name, data);
+        publishWrite(name, before);
+    }
+
+    @Override
+    public void writeFileSync(String name, byte[] data) throws Exception {
+        long before = versionOf(name);
+        delegate.writeFileSync(name, data);
+        publishWrite(name, before);
+    }
+
+    @Override
+    public long writeFileIfMatch(String name, long expectedVersion, byte[] data) throws Exception {
+        long version = delegate.writeFileIfMatch(name, expectedVersion, data);
+        // same version back means the contents were already there
+        if (version != expectedVersion) hub.publish(expectedVersion == 0 ? "CREATE" : "WRITE", name, false);
+        return version;
+    }
+
+    @Override
+    public FileStat stat(String name) throws Exception {
+        return delegate.stat(name);
+    }
+
+    @Override
+    public FileStat readFileIfChanged(String name, long knownVersion) throws Exception {
+        return delegate.readFileIfChanged(name, knownVersion);
+    }
+
+    @Override
+    public void flush() throws Exception {
+        delegate.flush();
+    }
+
+    @Override
+    public byte[] readFile(String name) throws Exception {
+        return delegate.readFile(name);
+    }
+
+    @Override
+    public byte[] readFile(String name, int offset, int length) throws Exception {
+        return delegate.readFile(name, offset, length);
+    }
+
+    @Override
+    public void deleteFile(String name) throws Exception {
+        delegate.deleteFile(name);
+        hub.publish("DELETE", name, false);
+    }
+
+    @Override
+    public String[] listFiles() {
+        return delegate.listFiles();
+    }
+
+    @Override
+    public String[] listDirectory(String path, String after, int limit) throws Exception {
+        return delegate.listDirectory(path, after, limit);
+    }
+
+    @Override
+    public void createDirectory(String path) throws Exception {
+        delegate.createDirectory(path);
+        hub.publish("CREATE", path, true);
+    }
+
+    @Override
+    public void deleteDirectory(String path) throws Exception {
+        delegate.deleteDirectory(path);
+        hub.publish("DELETE", path, true);
+    }
+
+    @Override
+    public void rename(String from, String to) throws Exception {
+        boolean directory = isDirectory(from);
+        delegate.rename(from, to);
+        hub.publish("DELETE", from, directory);
+        hub.publish("CREATE", to, directory);
+    }
+
+    private void publishWrite(String name, long before) {
+        if (before < 0) return;
+        long after = versionOf(name);
+        if (after == before) return;
+        hub.publish(before == 0 ? "CREATE" : "WRITE", name, false);
+    }
+
+    // 0 when there is no such file, -1 when nobody would hear about it anyway
+    private long versionOf(String name) {
+        if (hub.getWatcherCount() == 0) return -1;
+        try {
+            return delegate.stat(name).getVersion();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private boolean isDirectory(String path) {
+        if (hub.getWatcherCount() == 0) return false;
+        try {
+            delegate.listDirectory(path, null, 0);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ca.concordia.watch;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// one watching connection. events wait in a bounded per path map: a newer
+// event for a path replaces the queued one, and when MAX_PENDING paths are
+// waiting new ones are dropped and the client gets "EVENT OVERFLOW *" so it
+// knows to LIST again. a slow client only ever slows down its own thread
+public class Watcher {
+
+    private static final int MAX_PENDING = 1024;
+
+    private final WatchHub hub;
+    private final PrintWriter out;
+    private final Set<String> patterns = ConcurrentHashMap.newKeySet();
+    // path -> latest event type, guarded by this
+    private final Map<String, String> pending = new LinkedHashMap<>();
+    private boolean overflowed;
+    private volatile boolean running = true;
+    private final Thread sender;
+
+    Watcher(WatchHub hub, PrintWriter out) {
+        this.hub = hub;
+        this.out = out;
+        this.sender = new Thread(this::sendLoop, "watch-sender");
+        sender.setDaemon(true);
+    }
+
+    void start() {
+        sender.start();
+    }
+
+    void stop() {
+        running = false;
+        sender.interrupt();
+    }
+
+    public void add(String pattern) {
+        patterns.add(WatchHub.normalize(pattern));
+    }
+
+    // false if it wasn't being watched
+    public boolean remove(String pattern) {
+        return patterns.remove(WatchHub.normalize(pattern));
+    }
+
+    boolean matches(String path) {
+        for (String p : patterns) {
+            if (p.endsWith("*") ? path.startsWith(p.substring(0, p.length() - 1)) : path.equals(p))
+                return true;
+        }
+        return false;
+    }
+
+    synchronized void offer(String type, String path) {
+        if (pending.containsKey(path)) {
+            // keeps its place in line, only the latest type is sent
+            pending.put(path, type);
+            hub.coalesced.incrementAndGet();
+        } else if (pending.size() >= MAX_PENDING) {
+            overflowed = true;
+            hub.dropped.incrementAndGet();
+        } else {
+            pending.put(path, type);
+        }
+        notifyAll();
+    }
+
+    private void sendLoop() {
+        while (running) {
+            List<Map.Entry<String, String>> batch = new ArrayList<>();
+            boolean overflow;
+            synchronized (this) {
+                try {
+                    while (running && pending.isEmpty() && !overflowed) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) return;
+                for (Map.Entry<String, String> e : pending.entrySet())
+                    batch.add(Map.entry(e.getKey(), e.getValue()));
+                pending.clear();
+                overflow = overflowed;
+                overflowed = false;
+            }
+
+            // written outside the lock, a stuck socket doesn't hold up publishers
+            for (Map.Entry<String, String> e : batch)
+                out.println("EVENT " + e.getValue() + " " + e.getKey());
+            if (overflow)
+                out.println("EVENT OVERFLOW *");
+            out.flush();
+            hub.sent.addAndGet(batch.size());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import ca.concordia.server.AdmissionControl;
+import ca.concordia.server.FileServer;
+import ca.concordia.server.TokenBucket;
+import helpers.ClientRunner;
+import helpers.InProcessServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// overload protection, the server runs in this JVM
+public class AdmissionTests {
+    static final int PORT = 12410;
+
+    @TempDir
+    static Path dir;
+
+    static InProcessServer server;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        FileServer fs = new FileServer(PORT, dir.resolve("admission.dat").toString(), 10 * 128);
+        fs.setMaxRequestBytes(256);
+        server = new InProcessServer(fs, PORT).start();
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    void testOversizedRequestIsRefused() throws Exception {
+        try (Socket s = new Socket("localhost", PORT);
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            out.println("WRITE big " + "x".repeat(1000));
+            assertTrue(in.readLine().startsWith("ERROR: request too large"));
+
+            // the rest of the line was skipped, the connection still works
+            out.println("WRITE small ok");
+            assertTrue(in.readLine().startsWith("SUCCESS"));
+        }
+        assertTrue(ClientRunner.send(PORT, "STATS").contains("tooLarge=1"));
+    }
+
+    @Test
+    void testAdmissionTurnsAwayOverflow() throws Exception {
+        AdmissionControl a = new AdmissionControl(1, 1, 10);
+        assertTrue(a.admit());
+        // the only slot is taken and nobody releases it in time
+        assertFalse(a.admit());
+        a.release();
+        assertTrue(a.admit());
+        a.release();
+        assertEquals(2, a.getAdmitted());
+        assertEquals(1, a.getRejected());
+    }
+
+    @Test
+    void testTokenBucketSlowsDown() throws Exception {
+        TokenBucket b = new TokenBucket(100, 1);
+        assertEquals(0, b.take(1));
+        // out of tokens, the next one is 10ms away
+        assertTrue(b.take(1) > 0);
+        assertEquals(0, new TokenBucket(0, 0).take(1_000_000));
+    }
+}
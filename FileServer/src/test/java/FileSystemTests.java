@@ -1,5 +1,19 @@
+import ca.concordia.filesystem.BlockScrubber;
+import ca.concordia.filesystem.Codec;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystemManager;
+import ca.concordia.filesystem.WriteBehindStore;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -54,4 +68,360 @@ public class FileSystemTests {
             assertNotEquals("b.txt", fileName);
         }
     }
+
+    @Test
+    void testDedupSharesIdenticalBlocks(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("dedup.dat").toString();
+        FileSystemManager d = new FileSystemManager(volume, 10 * 128);
+        d.setDedupEnabled(true);
+
+        byte[] data = "same content ".repeat(20).getBytes();
+        d.writeFile("one", data);
+        d.writeFile("two", data);
+        assertEquals(3, d.getBlockWritesSaved());
+        assertEquals(2.0, d.getDedupRatio());
+
+        // shared blocks survive deleting one of the owners
+        d.deleteFile("one");
+        assertArrayEquals(data, d.readFile("two"));
+        d.close();
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertArrayEquals(data, reopened.readFile("two"));
+        reopened.close();
+    }
+
+    @Test
+    void testCompressedFileRoundTrip(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("packed.dat").toString();
+        FileSystemManager c = new FileSystemManager(volume, 10 * 128);
+        c.setCompression(Codec.DEFLATE_FAST);
+
+        byte[] data = "status=ok;".repeat(100).getBytes();
+        c.writeFile("log.txt", data);
+        assertArrayEquals(data, c.readFile("log.txt"));
+        assertTrue(c.getStoredBytes() < c.getLogicalBytes());
+        c.close();
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertArrayEquals(data, reopened.readFile("log.txt"));
+        reopened.close();
+    }
+
+    @Test
+    void testLargeCompressedFileRoundTrip(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("large.dat").toString();
+        FileSystemManager c = new FileSystemManager(volume, 10 * 128);
+        c.setCompression(Codec.DEFLATE_FAST);
+
+        // far more than the volume holds, but it packs into a few blocks
+        byte[] data = new byte[FileSystemManager.MAX_FILE_SIZE];
+        Arrays.fill(data, (byte) 'a');
+        c.writeFile("big", data);
+        assertEquals(data.length, c.stat("big").getSize());
+        assertArrayEquals(data, c.readFile("big"));
+
+        // one byte more doesn't fit the size field, the file keeps its contents
+        byte[] tooBig = new byte[FileSystemManager.MAX_FILE_SIZE + 1];
+        Arrays.fill(tooBig, (byte) 'a');
+        assertThrows(Exception.class, () -> c.writeFile("big", tooBig));
+        assertThrows(Exception.class, () -> c.writeFile("new", tooBig));
+        assertArrayEquals(data, c.readFile("big"));
+        assertFalse(Arrays.asList(c.listFiles()).contains("new"));
+        c.close();
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertArrayEquals(data, reopened.readFile("big"));
+        reopened.close();
+    }
+
+    @Test
+    void testSmallFilesStayInline(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("inline.dat").toString();
+        FileSystemManager i = new FileSystemManager(volume, 10 * 128);
+
+        i.writeFile("tiny", "counter=1".getBytes());
+        i.writeFile("tiny", "counter=2".getBytes());
+        // all ten blocks are still free for a big file
+        byte[] big = new byte[10 * 128];
+        i.writeFile("big", big);
+        assertEquals("counter=2", new String(i.readFile("tiny")));
+        i.close();
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertEquals("counter=2", new String(reopened.readFile("tiny")));
+        assertArrayEquals(big, reopened.readFile("big"));
+        reopened.close();
+    }
+
+    @Test
+    void testDirectories(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("tree.dat").toString();
+        FileSystemManager t = new FileSystemManager(volume, 10 * 128);
+
+        t.createDirectory("docs");
+        t.writeFile("docs/a.txt", "alpha".getBytes());
+        t.writeFile("docs/b.txt", "beta".getBytes());
+        assertArrayEquals(new String[]{"docs/"}, t.listFiles());
+        assertArrayEquals(new String[]{"a.txt"}, t.listDirectory("docs", null, 1));
+        assertArrayEquals(new String[]{"b.txt"}, t.listDirectory("docs", "a.txt", 1));
+
+        assertThrows(Exception.class, () -> t.deleteDirectory("docs"));
+        t.rename("docs/a.txt", "a.txt");
+        t.deleteFile("docs/b.txt");
+        t.deleteDirectory("docs");
+        t.close();
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertArrayEquals(new String[]{"a.txt"}, reopened.listFiles());
+        assertEquals("alpha", new String(reopened.readFile("a.txt")));
+        reopened.close();
+    }
+
+    @Test
+    void testShardedVolumes(@TempDir Path dir) throws Exception {
+        String[] volumes = new String[4];
+        for (int i = 0; i < volumes.length; i++)
+            volumes[i] = dir.resolve("shard" + i + ".dat").toString();
+        ShardedFileSystemManager s = new ShardedFileSystemManager(volumes, 10 * 128);
+
+        String[] names = {"a", "b", "c", "d", "e", "f"};
+        for (String n : names)
+            s.writeFile(n, ("data " + n).getBytes());
+        s.createDirectory("g");
+        s.writeFile("g/inner", "nested".getBytes());
+
+        // files really are spread out
+        int used = 0;
+        for (FileSystemManager shard : s.getShards())
+            if (shard.listFiles().length > 0) used++;
+        assertTrue(used > 1);
+
+        assertArrayEquals(new String[]{"a", "b", "c", "d", "e", "f", "g/"}, s.listFiles());
+        assertArrayEquals(new String[]{"d", "e"}, s.listDirectory("/", "c", 2));
+        assertEquals("nested", new String(s.readFile("g/inner")));
+
+        s.rename("a", "z");
+        assertEquals("data a", new String(s.readFile("z")));
+        s.close();
+    }
+
+    @Test
+    void testWriteBehindCoalesces(@TempDir Path dir) throws Exception {
+        FileSystemManager disk = new FileSystemManager(dir.resolve("wb.dat").toString(), 10 * 128);
+        // long enough that the flusher stays out of the way
+        WriteBehindStore wb = new WriteBehindStore(disk, 60_000, 1 << 20);
+
+        wb.writeFile("status", "v1".getBytes());
+        wb.writeFile("status", "v2".getBytes());
+        assertEquals("v2", new String(wb.readFile("status")));
+        assertEquals(0, disk.readFile("status").length);
+        assertEquals(1, wb.getCoalescedWrites());
+
+        wb.writeFileSync("other", "now".getBytes());
+        assertEquals("now", new String(disk.readFile("other")));
+
+        wb.close();
+        assertEquals("v2", new String(disk.readFile("status")));
+        assertEquals(1, wb.getFlushedWrites());
+        disk.close();
+    }
+
+    @Test
+    @Timeout(10)
+    void testWriteBehindReadsDontWaitForCreate(@TempDir Path dir) throws Exception {
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // a create stuck on the disk, or waiting for a replica
+        FileSystemManager disk = new FileSystemManager(dir.resolve("wbc.dat").toString(), 10 * 128) {
+            @Override
+            public void createFile(String name) throws Exception {
+                if (name.equals("slow")) {
+                    creating.countDown();
+                    release.await();
+                }
+                super.createFile(name);
+            }
+        };
+        WriteBehindStore wb = new WriteBehindStore(disk, 60_000, 1 << 20);
+        wb.writeFile("fast", "ready".getBytes());
+
+        Thread writer = new Thread(() -> {
+            try {
+                wb.writeFile("slow", "later".getBytes());
+            } catch (Exception ignored) {}
+        });
+        writer.start();
+        creating.await();
+        assertEquals("ready", new String(wb.readFile("fast")));
+        assertEquals(1, wb.getBufferedFiles());
+
+        release.countDown();
+        writer.join();
+        assertEquals("later", new String(wb.readFile("slow")));
+        wb.close();
+        disk.close();
+    }
+
+    @Test
+    void testRangeReadsAndReadahead(@TempDir Path dir) throws Exception {
+        FileSystemManager r = new FileSystemManager(dir.resolve("ra.dat").toString(), 10 * 128);
+        byte[] data = new byte[10 * 128];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31);
+        r.writeFile("big", data);
+
+        // the blocks sit next to each other, the whole file is one read
+        assertArrayEquals(data, r.readFile("big"));
+        assertEquals(1, r.getDiskReads());
+
+        // a sequential reader, mostly served from blocks read ahead
+        int reads = 0;
+        for (int off = 0; off < data.length; off += 100, reads++)
+            assertArrayEquals(Arrays.copyOfRange(data, off, Math.min(data.length, off + 100)), r.readFile("big", off, 100));
+        assertTrue(r.getCacheHits() > 0);
+        assertTrue(r.getDiskReads() - 1 < reads / 2);
+
+        // rewritten blocks are not served stale
+        byte[] other = new byte[3 * 128];
+        Arrays.fill(other, (byte) 7);
+        r.writeFile("big", other);
+        assertArrayEquals(Arrays.copyOfRange(other, 128, 256), r.readFile("big", 128, 128));
+        assertEquals(0, r.readFile("big", 400, 10).length);
+        r.close();
+    }
+
+    @Test
+    void testVersionsAndConditionalOps(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("versions.dat").toString();
+        FileSystemManager v = new FileSystemManager(volume, 10 * 128);
+        byte[] data = "x".repeat(300).getBytes();
+
+        long v1 = v.writeFileIfMatch("doc", 0, data);
+        assertThrows(Exception.class, () -> v.writeFileIfMatch("doc", 0, data));
+
+        // same contents again: nothing written, same version
+        v.writeFile("doc", data);
+        assertEquals(1, v.getWritesSkipped());
+        assertEquals(v1, v.stat("doc").getVersion());
+
+        // an up to date client gets no data and costs no disk reads
+        long reads = v.getDiskReads();
+        assertNull(v.readFileIfChanged("doc", v1).getData());
+        assertEquals(reads, v.getDiskReads());
+
+        long v2 = v.writeFileIfMatch("doc", v1, "y".repeat(300).getBytes());
+        assertTrue(v2 > v1);
+        assertArrayEquals("y".repeat(300).getBytes(), v.readFileIfChanged("doc", v1).getData());
+        v.close();
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertEquals(v2, reopened.stat("doc").getVersion());
+        assertEquals(300, reopened.stat("doc").getSize());
+
+        // versions never come back, not even after the newest file is gone
+        reopened.deleteFile("doc");
+        reopened.close();
+        FileSystemManager again = new FileSystemManager(volume, 10 * 128);
+        again.writeFile("doc", "z".getBytes());
+        assertTrue(again.stat("doc").getVersion() > v2);
+        again.close();
+    }
+
+    @Test
+    void testCorruptBlockIsCaught(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("crc.dat").toString();
+        FileSystemManager c = new FileSystemManager(volume, 10 * 128);
+        byte[] data = "abcdefgh".repeat(40).getBytes();
+        c.writeFile("doc", data);
+        c.close();
+
+        // flip a byte in the first data block behind the file system's back
+        try (RandomAccessFile raw = new RandomAccessFile(volume, "rw")) {
+            raw.seek(5 * 15 + 10 * 8 + 3);
+            raw.write('Z');
+        }
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertThrows(Exception.class, () -> reopened.readFile("doc"));
+        assertEquals(Set.of(0), reopened.getCorruptBlocks());
+
+        BlockScrubber scrubber = new BlockScrubber(List.of(reopened), 1000);
+        scrubber.start();
+        while (scrubber.getPasses() == 0) Thread.sleep(10);
+        scrubber.stop();
+        assertTrue(reopened.getChecksumErrors() >= 2);
+
+        // rewriting the file replaces the bad block
+        reopened.writeFile("doc", data);
+        assertArrayEquals(data, reopened.readFile("doc"));
+        assertTrue(reopened.getCorruptBlocks().isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    void testSnapshotsKeepOldContents(@TempDir Path dir) throws Exception {
+        FileSystemManager s = new FileSystemManager(dir.resolve("snap.dat").toString(), 10 * 128);
+        byte[] before = "a".repeat(300).getBytes();
+        s.createDirectory("docs");
+        s.writeFile("docs/big", before);
+        s.writeFile("small", "tiny".getBytes());
+        s.createSnapshot("monday");
+
+        // the live tree moves on, new data goes to other blocks
+        s.writeFile("docs/big", "b".repeat(300).getBytes());
+        s.deleteFile("small");
+        assertEquals(6, s.getUsedDataBlocks());
+
+        assertArrayEquals(before, s.readSnapshotFile("monday", "docs/big"));
+        assertEquals("tiny", new String(s.readSnapshotFile("monday", "small")));
+        assertArrayEquals(new String[]{"docs/", "small"}, s.listSnapshotDirectory("monday", "/"));
+        assertArrayEquals("b".repeat(300).getBytes(), s.readFile("docs/big"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        s.backup("monday", out);
+        assertEquals("MKDIR docs\nWRITE docs/big " + Base64.getEncoder().encodeToString(before)
+                + "\nWRITE small " + Base64.getEncoder().encodeToString("tiny".getBytes()) + "\n",
+                out.toString().replace("\r", ""));
+
+        // dropping it gives the old blocks back
+        s.deleteSnapshot("monday");
+        assertEquals(3, s.getUsedDataBlocks());
+        assertThrows(Exception.class, () -> s.readSnapshotFile("monday", "small"));
+        s.close();
+    }
+
+    @Test
+    void testRewriteTooBigForPinnedBlocksLeavesFileIntact(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("pinned.dat").toString();
+        FileSystemManager p = new FileSystemManager(volume, 10 * 128);
+        byte[] data = "m".repeat(600).getBytes();
+        p.writeFile("doc", data);
+        long version = p.stat("doc").getVersion();
+        p.createSnapshot("keep");
+
+        // 5 blocks pinned by the snapshot, 6 needed and only 5 free
+        assertThrows(Exception.class, () -> p.writeFile("doc", "n".repeat(700).getBytes()));
+        assertArrayEquals(data, p.readFile("doc"));
+        assertEquals(version, p.stat("doc").getVersion());
+        p.close();
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertArrayEquals(data, reopened.readFile("doc"));
+        reopened.close();
+    }
+
+    @Test
+    void testVolumeInUseIsRefused(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("locked.dat").toString();
+        FileSystemManager held = new FileSystemManager(volume, 10 * 128);
+
+        // waits as long as it was told to, then gives up
+        long t0 = System.currentTimeMillis();
+        assertThrows(RuntimeException.class, () -> new FileSystemManager(volume, 10 * 128, 200));
+        assertTrue(System.currentTimeMillis() - t0 >= 200);
+        assertThrows(RuntimeException.class, () -> new FileSystemManager(volume, 10 * 128));
+
+        held.close();
+        new FileSystemManager(volume, 10 * 128).close();
+    }
 }
@@ -0,0 +1,110 @@
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.replication.ReplicatedStore;
+import ca.concordia.replication.ReplicationMode;
+import ca.concordia.replication.ReplicationPrimary;
+import ca.concordia.server.FileServer;
+import helpers.ClientRunner;
+import helpers.InProcessServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// a primary and a replica in this JVM, talking over loopback
+public class ReplicationTests {
+    static final int PRIMARY_PORT = 12400;
+    static final int REPLICATION_PORT = 12401;
+    static final int REPLICA_PORT = 12402;
+
+    @TempDir
+    static Path dir;
+
+    static InProcessServer primary;
+    static InProcessServer replica;
+
+    @BeforeAll
+    static void startServers() throws Exception {
+        FileServer p = new FileServer(PRIMARY_PORT, dir.resolve("primary.dat").toString(), 10 * 128);
+        p.enableReplication(REPLICATION_PORT, ReplicationMode.SEMI_SYNC);
+        primary = new InProcessServer(p, PRIMARY_PORT).start();
+
+        FileServer r = new FileServer(REPLICA_PORT, dir.resolve("replica.dat").toString(), 10 * 128);
+        r.replicateFrom("localhost", REPLICATION_PORT);
+        replica = new InProcessServer(r, REPLICA_PORT).start();
+
+        primary.waitFor("replicas=1");
+        replica.waitFor("connected=true");
+    }
+
+    @AfterAll
+    static void stopServers() throws Exception {
+        replica.stop();
+        primary.stop();
+    }
+
+    @Test
+    @Timeout(10)
+    void testReplicaServesPrimaryWrites() throws Exception {
+        ClientRunner.send(PRIMARY_PORT, "MKDIR logs");
+        assertTrue(ClientRunner.send(PRIMARY_PORT, "WRITE logs/today started").startsWith("SUCCESS"));
+
+        // semi-sync: the write was acknowledged by the replica before we got SUCCESS
+        assertEquals("SUCCESS: started", ClientRunner.send(REPLICA_PORT, "READ logs/today"));
+        assertTrue(ClientRunner.send(REPLICA_PORT, "LIST logs").contains("today"));
+        assertTrue(ClientRunner.send(PRIMARY_PORT, "STATS").contains("replLagRecords=0"));
+    }
+
+    @Test
+    void testReplicaIsReadOnly() throws Exception {
+        assertTrue(ClientRunner.send(REPLICA_PORT, "WRITE nope data").startsWith("ERROR"));
+        assertTrue(ClientRunner.send(REPLICA_PORT, "DELETE nope").startsWith("ERROR"));
+        // its versions aren't the primary's
+        ClientRunner.send(PRIMARY_PORT, "WRITE versioned data");
+        assertTrue(ClientRunner.send(REPLICA_PORT, "STAT versioned").startsWith("ERROR"));
+        assertTrue(ClientRunner.send(REPLICA_PORT, "READ-IF-CHANGED versioned 1").startsWith("ERROR"));
+    }
+
+    @Test
+    @Timeout(10)
+    void testLoggingOnlyOrdersWritesToTheSameSubtree() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // a write stuck on the disk
+        FileSystemManager disk = new FileSystemManager(dir.resolve("striped.dat").toString(), 10 * 128) {
+            @Override
+            public void writeFile(String name, byte[] data) throws Exception {
+                if (name.equals("slow")) {
+                    writing.countDown();
+                    release.await();
+                }
+                super.writeFile(name, data);
+            }
+        };
+        // never started, there are no replicas to wait for
+        ReplicationPrimary primary = new ReplicationPrimary(disk, REPLICATION_PORT + 10, ReplicationMode.ASYNC);
+        ReplicatedStore store = new ReplicatedStore(disk, primary);
+
+        Thread writer = new Thread(() -> {
+            try {
+                store.writeFile("slow", "later".getBytes());
+            } catch (Exception ignored) {}
+        });
+        writer.start();
+        writing.await();
+        // another top level name doesn't wait for it
+        store.writeFile("fast", "now".getBytes());
+        assertEquals(1, primary.getLastSeq());
+
+        release.countDown();
+        writer.join();
+        assertEquals(2, primary.getLastSeq());
+        assertEquals("later", new String(disk.readFile("slow")));
+        disk.close();
+    }
+}
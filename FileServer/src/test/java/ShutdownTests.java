@@ -0,0 +1,57 @@
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.server.FileServer;
+import helpers.ClientRunner;
+import helpers.InProcessServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// graceful shutdown and handing the port over, the servers run in this JVM
+public class ShutdownTests {
+    static final int PORT = 12430;
+
+    @Test
+    @Timeout(20)
+    void testShutdownDrainsAndHandsOver(@TempDir Path dir) throws Exception {
+        String volume = dir.resolve("drain.dat").toString();
+        FileServer fs = new FileServer(PORT, volume, 10 * 128);
+        // buffered writes would be lost if shutdown didn't flush them
+        fs.enableWriteBehind(60_000, 1 << 20);
+        // both sides of a handoff have to opt in
+        InProcessServer old = new InProcessServer(fs, PORT).start(FileServer.bind(PORT, true));
+
+        try (Socket idle = new Socket("localhost", PORT);
+             PrintWriter out = new PrintWriter(idle.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(idle.getInputStream()))) {
+            out.println("WRITE doc " + "x".repeat(300));
+            assertTrue(in.readLine().startsWith("SUCCESS"));
+
+            // the replacement listens on the same port before the old server lets go
+            ServerSocket listener = FileServer.bind(PORT, true);
+            old.stop();
+            assertFalse(old.isRunning());
+            // idle connections are closed once the requests in flight are done
+            assertNull(in.readLine());
+
+            // the volume is unlocked and holds the buffered write
+            InProcessServer next = new InProcessServer(new FileServer(PORT, volume, 10 * 128), PORT).start(listener);
+            assertEquals("SUCCESS: " + "x".repeat(300), ClientRunner.send(PORT, "READ doc"));
+            // warm-up already read the file's blocks
+            assertTrue(ClientRunner.send(PORT, "STATS").contains("diskReads=1 cacheHits=3"));
+            next.stop();
+        }
+
+        FileSystemManager reopened = new FileSystemManager(volume, 10 * 128);
+        assertEquals(300, reopened.stat("doc").getSize());
+        reopened.close();
+    }
+}
@@ -0,0 +1,74 @@
+import ca.concordia.server.FileServer;
+import helpers.ClientRunner;
+import helpers.InProcessServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// change notifications, the server runs in this JVM
+public class WatchTests {
+    static final int PORT = 12420;
+
+    @TempDir
+    static Path dir;
+
+    static InProcessServer server;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        server = new InProcessServer(new FileServer(PORT, dir.resolve("watch.dat").toString(), 10 * 128), PORT).start();
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    @Timeout(10)
+    void testWatchPrefixGetsEvents() throws Exception {
+        try (Socket s = new Socket("localhost", PORT);
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            out.println("WATCH logs/*");
+            assertTrue(in.readLine().startsWith("SUCCESS"));
+
+            ClientRunner.send(PORT, "MKDIR logs");
+            ClientRunner.send(PORT, "WRITE other nothing to see");
+            ClientRunner.send(PORT, "WRITE logs/today started");
+            // neither changes anything
+            ClientRunner.send(PORT, "CREATE logs/today");
+            ClientRunner.send(PORT, "WRITE logs/today started");
+            ClientRunner.send(PORT, "MKDIR logs/old");
+            ClientRunner.send(PORT, "WRITE logs/today done");
+            ClientRunner.send(PORT, "RENAME logs/old logs/archive");
+            ClientRunner.send(PORT, "DELETE logs/today");
+
+            // the write to "other" doesn't match, everything else arrives in order
+            assertEquals("EVENT CREATE logs/", in.readLine());
+            // the first write created the file
+            assertEquals("EVENT CREATE logs/today", in.readLine());
+            assertEquals("EVENT CREATE logs/old/", in.readLine());
+            assertEquals("EVENT WRITE logs/today", in.readLine());
+            assertEquals("EVENT DELETE logs/old/", in.readLine());
+            assertEquals("EVENT CREATE logs/archive/", in.readLine());
+            assertEquals("EVENT DELETE logs/today", in.readLine());
+
+            // the connection still answers requests in between events
+            out.println("UNWATCH logs/*");
+            assertTrue(in.readLine().startsWith("SUCCESS"));
+            out.println("UNWATCH logs/*");
+            assertEquals("ERROR", in.readLine());
+        }
+    }
+}
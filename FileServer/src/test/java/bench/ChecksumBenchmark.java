@@ -0,0 +1,38 @@
+package bench;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.nio.file.Files;
+
+// cost of checking block checksums on the read path, on a full 10 block file.
+// not a test, run it by hand after mvn test-compile:
+//   java -cp target/classes:target/test-classes bench.ChecksumBenchmark
+public class ChecksumBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        File volume = Files.createTempFile("crc-bench", ".dat").toFile();
+        volume.delete();
+        FileSystemManager fs = new FileSystemManager(volume.getPath(), 10 * 128);
+        byte[] data = new byte[10 * 128];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        fs.writeFile("big", data);
+
+        System.out.printf("%-10s %12s %10s%n", "checksums", "read ns/op", "MB/s");
+        // alternate a few rounds so JIT and page cache settle for both
+        for (int round = 0; round < 3; round++) {
+            for (boolean on : new boolean[]{false, true}) {
+                fs.setChecksumsEnabled(on);
+                for (int i = 0; i < iterations / 10; i++) fs.readFile("big");
+                long t0 = System.nanoTime();
+                for (int i = 0; i < iterations; i++) fs.readFile("big");
+                long ns = (System.nanoTime() - t0) / iterations;
+                if (round == 2)
+                    System.out.printf("%-10s %12d %10.1f%n", on ? "on" : "off", ns, data.length * 1e3 / ns);
+            }
+        }
+        fs.close();
+        volume.delete();
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import ca.concordia.filesystem.Codec;
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.nio.file.Files;
+
+// bytes on disk and time per op for each codec.
+// not a test, run it by hand after mvn test-compile:
+//   java -cp target/classes:target/test-classes bench.CodecBenchmark
+public class CodecBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 1000; i++)
+            sb.append("{\"user\":").append(i % 7).append(",\"status\":\"ok\"}\n");
+        byte[] payload = sb.substring(0, 1000).getBytes();
+        // writes alternate between two payloads that differ in one byte, the same
+        // bytes twice in a row would skip the write
+        byte[][] payloads = {payload, payload.clone()};
+        payloads[1][0] = '[';
+
+        System.out.printf("%-13s %8s %8s %12s %12s%n", "codec", "logical", "stored", "write ns/op", "read ns/op");
+        for (Codec codec : Codec.values()) {
+            File volume = Files.createTempFile("codec-bench", ".dat").toFile();
+            volume.delete();
+            FileSystemManager fs = new FileSystemManager(volume.getPath(), 10 * 128);
+            fs.setCompression(codec);
+
+            // warm up the JIT before timing anything
+            for (int i = 0; i < iterations / 10; i++) {
+                fs.writeFile("bench", payloads[i & 1]);
+                fs.readFile("bench");
+            }
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) fs.writeFile("bench", payloads[i & 1]);
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) fs.readFile("bench");
+            long t2 = System.nanoTime();
+
+            System.out.printf("%-13s %8d %8d %12d %12d%n", codec.name().toLowerCase(),
+                    fs.getLogicalBytes(), fs.getStoredBytes(),
+                    (t1 - t0) / iterations, (t2 - t1) / iterations);
+            fs.close();
+            volume.delete();
+        }
+    }
+}
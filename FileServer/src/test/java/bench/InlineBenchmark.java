@@ -0,0 +1,41 @@
+package bench;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.nio.file.Files;
+
+// small file latency with and without inline storage.
+// not a test, run it by hand after mvn test-compile:
+//   java -cp target/classes:target/test-classes bench.InlineBenchmark
+public class InlineBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        // alternated, the same bytes twice in a row would skip the write
+        byte[][] payloads = {"{\"count\":12345}".getBytes(), "{\"count\":12346}".getBytes()};
+
+        System.out.printf("%-8s %12s %12s%n", "inline", "write ns/op", "read ns/op");
+        for (boolean inline : new boolean[]{false, true}) {
+            File volume = Files.createTempFile("inline-bench", ".dat").toFile();
+            volume.delete();
+            FileSystemManager fs = new FileSystemManager(volume.getPath(), 10 * 128);
+            fs.setInlineEnabled(inline);
+
+            for (int i = 0; i < iterations / 10; i++) {
+                fs.writeFile("small", payloads[i & 1]);
+                fs.readFile("small");
+            }
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) fs.writeFile("small", payloads[i & 1]);
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) fs.readFile("small");
+            long t2 = System.nanoTime();
+
+            System.out.printf("%-8s %12d %12d%n", inline ? "on" : "off",
+                    (t1 - t0) / iterations, (t2 - t1) / iterations);
+            fs.close();
+            volume.delete();
+        }
+    }
+}
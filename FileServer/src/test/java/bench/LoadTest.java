@@ -0,0 +1,118 @@
+package bench;
+
+import ca.concordia.server.FileServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// small READ latency while heavy writers flood the server, without and with
+// per connection limits. not a test, run it by hand after mvn test-compile:
+//   java -cp target/classes:target/test-classes bench.LoadTest
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int heavy = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int light = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        System.out.printf("%-8s %10s %10s %10s %10s %12s%n", "limits", "reads", "p50 us", "p99 us", "max us", "heavy ops");
+        int port = 12500;
+        for (boolean limited : new boolean[]{false, true}) {
+            File volume = Files.createTempFile("load", ".dat").toFile();
+            volume.delete();
+            FileServer server = new FileServer(port, volume.getPath(), 10 * 128);
+            if (limited) {
+                server.setAdmission(4, 64, 100);
+                server.setRateLimits(200, 64 * 1024);
+            }
+            Thread t = new Thread(server::start);
+            t.setDaemon(true);
+            t.start();
+            Thread.sleep(300);
+            send(port, "WRITE status ok");
+
+            long end = System.currentTimeMillis() + seconds * 1000L;
+            AtomicLong heavyOps = new AtomicLong();
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>();
+            AtomicLong seq = new AtomicLong();
+            String payload = "x".repeat(990);
+            for (int i = 0; i < heavy; i++) {
+                String name = "big" + (i % 3);
+                threads.add(run(port, end, conn -> {
+                    // numbered, a write of the bytes already there is skipped
+                    conn.request("WRITE " + name + " " + String.format("%010d", seq.incrementAndGet()) + payload);
+                    heavyOps.incrementAndGet();
+                }));
+            }
+            for (int i = 0; i < light; i++) {
+                threads.add(run(port, end, conn -> {
+                    long t0 = System.nanoTime();
+                    conn.request("READ status");
+                    latencies.add((System.nanoTime() - t0) / 1000);
+                    Thread.sleep(5);
+                }));
+            }
+            for (Thread th : threads) th.join();
+
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            System.out.printf("%-8s %10d %10d %10d %10d %12d%n", limited ? "on" : "off", sorted.size(),
+                    pct(sorted, 0.50), pct(sorted, 0.99), sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1),
+                    heavyOps.get());
+            volume.delete();
+            port++;
+        }
+        System.exit(0);
+    }
+
+    interface Step {
+        void run(Conn conn) throws Exception;
+    }
+
+    static final class Conn {
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Conn(Socket s) throws Exception {
+            in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            out = new PrintWriter(s.getOutputStream(), true);
+        }
+
+        String request(String line) throws Exception {
+            out.println(line);
+            return in.readLine();
+        }
+    }
+
+    private static Thread run(int port, long end, Step step) {
+        Thread t = new Thread(() -> {
+            try (Socket s = new Socket("localhost", port)) {
+                Conn conn = new Conn(s);
+                while (System.currentTimeMillis() < end) step.run(conn);
+            } catch (Exception e) {
+                System.err.println("load client failed: " + e.getMessage());
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static void send(int port, String line) throws Exception {
+        try (Socket s = new Socket("localhost", port)) {
+            new Conn(s).request(line);
+        }
+    }
+
+    private static long pct(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(p * sorted.size())));
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.nio.file.Files;
+
+// whole file and streamed range reads of a full volume file, with the OS reads they cost.
+// not a test, run it by hand after mvn test-compile:
+//   java -cp target/classes:target/test-classes bench.ReadaheadBenchmark
+public class ReadaheadBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int chunk = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        File volume = Files.createTempFile("readahead-bench", ".dat").toFile();
+        volume.delete();
+        FileSystemManager fs = new FileSystemManager(volume.getPath(), 10 * 128);
+        byte[] data = new byte[10 * 128];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        fs.writeFile("big", data);
+
+        System.out.printf("%-10s %12s %14s%n", "pattern", "ns/file", "os reads/file");
+
+        for (int i = 0; i < iterations / 10; i++) fs.readFile("big");
+        long reads0 = fs.getDiskReads();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) fs.readFile("big");
+        long t1 = System.nanoTime();
+        System.out.printf("%-10s %12d %14.2f%n", "whole", (t1 - t0) / iterations,
+                (double) (fs.getDiskReads() - reads0) / iterations);
+
+        for (int i = 0; i < iterations / 10; i++) stream(fs, data.length, chunk);
+        reads0 = fs.getDiskReads();
+        t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) stream(fs, data.length, chunk);
+        t1 = System.nanoTime();
+        System.out.printf("%-10s %12d %14.2f%n", "stream", (t1 - t0) / iterations,
+                (double) (fs.getDiskReads() - reads0) / iterations);
+
+        fs.close();
+        volume.delete();
+    }
+
+    private static void stream(FileSystemManager fs, int size, int chunk) throws Exception {
+        for (int off = 0; off < size; off += chunk) fs.readFile("big", off, chunk);
+    }
+}
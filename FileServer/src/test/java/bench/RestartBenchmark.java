@@ -0,0 +1,124 @@
+package bench;
+
+import ca.concordia.server.FileServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// readers hammering the server while it is replaced, once with the new listener
+// bound before the old server drains and once only after it is gone. reports what
+// the readers saw: failed requests, connections refused or dropped on them and the
+// longest wait for an answer.
+// not a test, run it by hand after mvn test-compile:
+//   java -cp target/classes:target/test-classes bench.RestartBenchmark
+public class RestartBenchmark {
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.printf("%-8s %8s %8s %8s %8s %11s %10s%n",
+                "restart", "reads", "refused", "dropped", "errors", "max gap ms", "drain ms");
+        int port = 12510;
+        for (boolean handoff : new boolean[]{true, false}) {
+            File volume = Files.createTempFile("restart", ".dat").toFile();
+            volume.delete();
+            FileServer server = serve(new FileServer(port, volume.getPath(), 10 * 128), FileServer.bind(port, handoff));
+            send(port, "WRITE doc " + "x".repeat(1000));
+
+            AtomicLong reads = new AtomicLong(), refused = new AtomicLong(), dropped = new AtomicLong();
+            AtomicLong errors = new AtomicLong(), maxGap = new AtomicLong();
+            stop = false;
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < readers; i++) threads.add(reader(port, reads, refused, dropped, errors, maxGap));
+
+            long drain = 0;
+            for (int r = 0; r < rounds; r++) {
+                Thread.sleep(200);
+                ServerSocket listener = handoff ? FileServer.bind(port, true) : null;
+                long t0 = System.nanoTime();
+                server.shutdown(2000);
+                long t1 = System.nanoTime();
+                if (listener == null) listener = FileServer.bind(port, false);
+                server = serve(new FileServer(port, volume.getPath(), 10 * 128), listener);
+                drain += (t1 - t0) / 1_000_000;
+            }
+            Thread.sleep(200);
+            stop = true;
+            for (Thread th : threads) th.join();
+            server.shutdown(2000);
+
+            System.out.printf("%-8s %8d %8d %8d %8d %11d %10.1f%n", handoff ? "handoff" : "cold",
+                    reads.get(), refused.get(), dropped.get(), errors.get(), maxGap.get(), (double) drain / rounds);
+            volume.delete();
+            port++;
+        }
+        System.exit(0);
+    }
+
+    private static volatile boolean stop;
+
+    private static FileServer serve(FileServer server, ServerSocket listener) {
+        Thread t = new Thread(() -> server.start(listener));
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+
+    // reads are safe to repeat, so a dropped connection is reopened and the read retried
+    private static Thread reader(int port, AtomicLong reads, AtomicLong refused, AtomicLong dropped,
+                                 AtomicLong errors, AtomicLong maxGap) {
+        Thread t = new Thread(() -> {
+            long last = System.nanoTime();
+            while (!stop) {
+                try (Socket s = new Socket("localhost", port)) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                    PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+                    while (!stop) {
+                        out.println("READ doc");
+                        String reply = in.readLine();
+                        if (reply == null) break;
+                        if (!reply.startsWith("SUCCESS")) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        long now = System.nanoTime();
+                        maxGap.accumulateAndGet((now - last) / 1_000_000, Math::max);
+                        last = now;
+                        reads.incrementAndGet();
+                    }
+                } catch (ConnectException e) {
+                    // nobody listening, try again right away
+                    refused.incrementAndGet();
+                    continue;
+                } catch (Exception e) {
+                    // reset
+                }
+                if (!stop) dropped.incrementAndGet();
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    // retried like a reader, a connection can still be dropped by the server going away
+    private static void send(int port, String line) throws Exception {
+        for (int tries = 0; ; tries++) {
+            try (Socket s = new Socket("localhost", port)) {
+                new PrintWriter(s.getOutputStream(), true).println(line);
+                if (new BufferedReader(new InputStreamReader(s.getInputStream())).readLine() != null) return;
+            } catch (IOException e) {
+                if (tries == 100) throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import ca.concordia.filesystem.ShardedFileSystemManager;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// write throughput of many concurrent clients against 1, 2, 4 and 8 volumes.
+// not a test, run it by hand after mvn test-compile:
+//   java -cp target/classes:target/test-classes bench.ShardBenchmark [clients] [seconds]
+public class ShardBenchmark {
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        System.out.printf("%-7s %8s %12s%n", "volumes", "files", "writes/s");
+        for (int shards : new int[]{1, 2, 4, 8}) {
+            File dir = Files.createTempDirectory("shard-bench").toFile();
+            String[] volumes = new String[shards];
+            for (int i = 0; i < shards; i++)
+                volumes[i] = new File(dir, "vol" + i + ".dat").getPath();
+            ShardedFileSystemManager fs = new ShardedFileSystemManager(volumes, 10 * 128);
+
+            // as many files as fit, each volume only has a few slots
+            List<String> files = new ArrayList<>();
+            for (int i = 0; files.size() < shards * 2 && i < shards * 50; i++) {
+                try {
+                    fs.createFile("f" + i);
+                    files.add("f" + i);
+                } catch (Exception full) {
+                    // that volume is out of slots
+                }
+            }
+
+            AtomicLong ops = new AtomicLong();
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            List<Thread> threads = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                final int id = c;
+                Thread t = new Thread(() -> {
+                    // the count goes in front, an unchanged write would be skipped
+                    byte[] payload = new byte[200];
+                    new Random(id).nextBytes(payload);
+                    int n = 0;
+                    while (System.nanoTime() < deadline) {
+                        try {
+                            ByteBuffer.wrap(payload).putInt(n);
+                            fs.writeFile(files.get((id + n++) % files.size()), payload);
+                            ops.incrementAndGet();
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) t.join();
+
+            System.out.printf("%-7d %8d %12d%n", shards, files.size(), ops.get() / seconds);
+            fs.close();
+            for (File f : dir.listFiles()) f.delete();
+            dir.delete();
+        }
+    }
+}
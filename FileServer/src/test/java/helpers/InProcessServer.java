@@ -0,0 +1,62 @@
+package helpers;
+
+import ca.concordia.server.FileServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+// a FileServer running on a thread of the test JVM, for tests that need to
+// configure it or look inside it. stop() shuts it down and unlocks its volumes
+public class InProcessServer {
+    private final FileServer server;
+    private final int port;
+    private Thread thread;
+
+    public InProcessServer(FileServer server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    public FileServer server() { return server; }
+
+    // binds its own listener and waits until STATS answers
+    public InProcessServer start() throws Exception {
+        thread = new Thread(server::start, "server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        waitFor("");
+        return this;
+    }
+
+    // serves on a listener from FileServer.bind(), e.g. one taking over a port
+    public InProcessServer start(ServerSocket listener) throws Exception {
+        thread = new Thread(() -> server.start(listener), "server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        waitFor("");
+        return this;
+    }
+
+    // polls STATS until the reply contains statsField
+    public void waitFor(String statsField) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try {
+                String stats = ClientRunner.send(port, "STATS");
+                if (stats != null && stats.contains(statsField)) return;
+            } catch (IOException notUpYet) {
+                // server still starting
+            }
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("server on port " + port + " never reported '" + statsField + "'");
+            Thread.sleep(50);
+        }
+    }
+
+    public boolean isRunning() { return thread != null && thread.isAlive(); }
+
+    public void stop() throws InterruptedException {
+        server.shutdown(2000);
+        if (thread != null) thread.join(2000);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.*;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
 public class ServerRunner {
     private Process process;
@@ -31,9 +32,15 @@ public class ServerRunner {
     }
 
 
+    // SIGTERM, the server drains and syncs its volume before it exits
     public void stop() {
         if (process != null && process.isAlive()) {
             process.destroy();
+            try {
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 }